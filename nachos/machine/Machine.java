@@ -451,6 +451,8 @@ public final class Machine {
         public static void incrNumSwapReads() { stats.numSwapReads++; }
         public static void incrNumSwapWrites() { stats.numSwapWrites++; }
         public static void incrNumSwapSkips() { stats.numSwapSkips++; }
+        public static void incrNumReserveHits() { stats.numReserveHits++; }
+        public static void incrNumReserveMisses() { stats.numReserveMisses++; }
 
 	private static int numPhysPages = -1;
 
@@ -30,6 +30,8 @@ public final class Stats {
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites
 			        + ", swap skips " + numSwapSkips);
+		System.out.println("Frames: reserve hits " + numReserveHits
+				+ ", reserve misses " + numReserveMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -79,6 +81,12 @@ public final class Stats {
         /** The total number of writes avoided with clean page optimization. */
         public int numSwapSkips = 0;
 
+        /** The total number of page faults that found a free frame waiting. */
+        public int numReserveHits = 0;
+
+        /** The total number of page faults that had to evict a page first. */
+        public int numReserveMisses = 0;
+
     /** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
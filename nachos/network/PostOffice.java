@@ -2,6 +2,10 @@ package nachos.network;
 
 import nachos.machine.*;
 import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
 
 /**
  * A collection of message queues, one for each local port. A
@@ -30,6 +34,11 @@ public class PostOffice {
 		for (int i = 0; i < queues.length; i++)
 			queues[i] = new SynchList();
 
+		pollLock = new Lock();
+		pollWaiters = new ArrayList<LinkedList<PollWaiter>>(MailMessage.portLimit);
+		for (int i = 0; i < MailMessage.portLimit; i++)
+			pollWaiters.add(new LinkedList<PollWaiter>());
+
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -71,6 +80,49 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Test whether a message is waiting on the specified port, so that
+	 * <tt>receive()</tt> would not block.
+	 * 
+	 * @param port the port to check.
+	 * @return <tt>true</tt> if a message is waiting.
+	 */
+	public boolean hasMail(int port) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		return !queues[port].isEmpty();
+	}
+
+	/**
+	 * Signal <i>waiter</i> whenever a message is delivered to the specified
+	 * port, until it is removed. This lets <tt>poll()</tt> wait on a port
+	 * alongside other file descriptors.
+	 * 
+	 * @param port the port to watch.
+	 * @param waiter the waiter to signal.
+	 */
+	public void addPollWaiter(int port, PollWaiter waiter) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		pollLock.acquire();
+		pollWaiters.get(port).add(waiter);
+		pollLock.release();
+	}
+
+	/**
+	 * Stop signalling <i>waiter</i> when messages arrive on the specified port.
+	 * 
+	 * @param port the port being watched.
+	 * @param waiter the waiter to remove.
+	 */
+	public void removePollWaiter(int port, PollWaiter waiter) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		pollLock.acquire();
+		pollWaiters.get(port).remove(waiter);
+		pollLock.release();
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -95,6 +147,11 @@ public class PostOffice {
 
 			// atomically add message to the mailbox and wake a waiting thread
 			queues[mail.dstPort].add(mail);
+
+			pollLock.acquire();
+			for (PollWaiter waiter : pollWaiters.get(mail.dstPort))
+				waiter.signal();
+			pollLock.release();
 		}
 	}
 
@@ -132,6 +189,10 @@ public class PostOffice {
 
 	private SynchList[] queues;
 
+	private ArrayList<LinkedList<PollWaiter>> pollWaiters;
+
+	private Lock pollLock;
+
 	private Semaphore messageReceived; // V'd when a message can be dequeued
 
 	private Semaphore messageSent; // V'd when a message can be queued
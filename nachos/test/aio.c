@@ -0,0 +1,142 @@
+/**
+ * Test program for the io_setup() and io_enter() syscalls in Nachos.
+ * Writes a file as NUM_BLOCKS concurrent asynchronous writes, reads it back
+ * with concurrent asynchronous reads, and checks the contents. Then leaves
+ * more reads waiting on an empty pipe than the kernel has I/O workers, and
+ * checks that file I/O through the ring still completes, and that the reads
+ * keep the pipe open after its descriptor is closed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define NUM_BLOCKS 8
+#define BLOCK_SIZE 256
+#define PIPE_READS 5
+#define PIPE_CHUNK 16
+
+struct io_sqe sq[NUM_BLOCKS];
+struct io_cqe cq[NUM_BLOCKS];
+struct io_ring ring;
+
+char out[NUM_BLOCKS][BLOCK_SIZE];
+char in[NUM_BLOCKS][BLOCK_SIZE];
+char piped[PIPE_READS][PIPE_CHUNK];
+
+void queue(int opcode, int fd, void *buf, int length, int offset, int tag) {
+    struct io_sqe *sqe = &sq[ring.sq_tail % ring.entries];
+
+    sqe->opcode = opcode;
+    sqe->fd = fd;
+    sqe->buf = buf;
+    sqe->length = length;
+    sqe->offset = offset;
+    sqe->user_data = tag;
+    ring.sq_tail++;
+}
+
+/* Submit everything queued, wait for all of it, and check each result. */
+int run(int count, int expected) {
+    int i;
+    struct io_cqe *cqe;
+
+    if (io_enter(count, count) != count) {
+        printf("io_enter failed\n");
+        return -1;
+    }
+
+    for (i = 0; i < count; i++) {
+        if (ring.cq_head == ring.cq_tail) {
+            printf("missing completion\n");
+            return -1;
+        }
+        cqe = &cq[ring.cq_head % ring.entries];
+        if (expected >= 0 && cqe->result != expected) {
+            printf("operation %d returned %d\n", cqe->user_data, cqe->result);
+            return -1;
+        }
+        ring.cq_head++;
+    }
+    return cqe->result;
+}
+
+int main() {
+    int i, j, fd, wfd, rfd;
+
+    ring.sq = sq;
+    ring.cq = cq;
+    if (io_setup(&ring, NUM_BLOCKS) != 0) {
+        printf("io_setup failed\n");
+        exit(1);
+    }
+
+    queue(IO_OPEN, 0, "aio.out", 1, 0, 0);
+    fd = run(1, -1);
+    if (fd < 0) {
+        printf("asynchronous open failed\n");
+        exit(1);
+    }
+
+    for (i = 0; i < NUM_BLOCKS; i++) {
+        for (j = 0; j < BLOCK_SIZE; j++)
+            out[i][j] = 'a' + (i + j) % 26;
+        queue(IO_WRITE, fd, out[i], BLOCK_SIZE, i * BLOCK_SIZE, i);
+    }
+    if (run(NUM_BLOCKS, BLOCK_SIZE) < 0)
+        exit(1);
+
+    for (i = 0; i < NUM_BLOCKS; i++)
+        queue(IO_READ, fd, in[i], BLOCK_SIZE, i * BLOCK_SIZE, i);
+    if (run(NUM_BLOCKS, BLOCK_SIZE) < 0)
+        exit(1);
+
+    wfd = creat("/pipe/aio");
+    rfd = open("/pipe/aio");
+    if (wfd < 0 || rfd < 0) {
+        printf("could not create pipe\n");
+        exit(1);
+    }
+    for (i = 0; i < PIPE_READS; i++)
+        queue(IO_READ, rfd, piped[i], PIPE_CHUNK, -1, i);
+    if (io_enter(PIPE_READS, 0) != PIPE_READS) {
+        printf("io_enter failed\n");
+        exit(1);
+    }
+
+    queue(IO_READ, fd, in[0], BLOCK_SIZE, 0, 0);
+    if (run(1, BLOCK_SIZE) < 0)
+        exit(1);
+
+    close(rfd);
+    if (write(wfd, out[0], PIPE_READS * PIPE_CHUNK) != PIPE_READS * PIPE_CHUNK) {
+        printf("pipe closed under pending reads\n");
+        exit(1);
+    }
+    close(wfd);
+
+    io_enter(0, PIPE_READS);
+    for (i = 0; i < PIPE_READS; i++) {
+        if (cq[ring.cq_head % ring.entries].result != PIPE_CHUNK) {
+            printf("pipe read returned %d\n", cq[ring.cq_head % ring.entries].result);
+            exit(1);
+        }
+        ring.cq_head++;
+    }
+
+    queue(IO_CLOSE, fd, 0, 0, 0, 0);
+    if (run(1, 0) < 0)
+        exit(1);
+    unlink("aio.out");
+
+    for (i = 0; i < NUM_BLOCKS; i++) {
+        for (j = 0; j < BLOCK_SIZE; j++) {
+            if (in[i][j] != out[i][j]) {
+                printf("block %d differs at byte %d\n", i, j);
+                exit(1);
+            }
+        }
+    }
+
+    printf("aio: %d blocks written and read back\n", NUM_BLOCKS);
+    return 0;
+}
@@ -0,0 +1,56 @@
+/**
+ * Test program for the dup() and dup2() syscalls in Nachos. Redirects
+ * standard output into a file, runs echo.coff with it, then restores
+ * standard output and checks what echo wrote.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+char buf[128];
+
+int main() {
+    char *args[1];
+    int fd, saved, pid, status, n;
+
+    fd = creat("dup.out");
+    saved = dup(fdStandardOutput);
+    if (fd < 0 || saved < 0) {
+        printf("could not set up descriptors\n");
+        exit(1);
+    }
+
+    if (dup2(fd, fdStandardOutput) != fdStandardOutput) {
+        printf("dup2 failed\n");
+        exit(1);
+    }
+    close(fd);
+
+    args[0] = "redirected";
+    pid = exec("echo.coff", 1, args);
+    if (pid < 0)
+        exit(1);
+    join(pid, &status);
+
+    dup2(saved, fdStandardOutput);
+    close(saved);
+
+    fd = open("dup.out");
+    n = read(fd, buf, sizeof(buf) - 1);
+    close(fd);
+    unlink("dup.out");
+
+    if (n <= 0) {
+        printf("child output was not redirected\n");
+        exit(1);
+    }
+    buf[n] = '\0';
+    if (strcmp(buf, "1 arguments\narg 0: redirected\n") != 0) {
+        printf("unexpected child output: %s", buf);
+        exit(1);
+    }
+
+    printf("dup: child output redirected through dup2\n");
+    return 0;
+}
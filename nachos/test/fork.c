@@ -0,0 +1,86 @@
+/**
+ * Test program for the fork() syscall in Nachos.
+ * Parent and child each modify their own copy of a global array after the
+ * fork; neither should see the other's writes. Then a child forked with
+ * standard output redirected to a file must write into that file.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define SIZE 2048
+
+int data[SIZE];
+char buf[128];
+
+int main() {
+    int i, pid, status, sum, fd, saved, n;
+
+    for (i = 0; i < SIZE; i++)
+        data[i] = i;
+
+    pid = fork();
+    if (pid < 0) {
+        printf("fork failed\n");
+        exit(1);
+    }
+
+    if (pid == 0) {
+        // Child: overwrite the first half only
+        for (i = 0; i < SIZE / 2; i++)
+            data[i] = 0;
+        sum = 0;
+        for (i = 0; i < SIZE; i++)
+            sum += data[i];
+        exit(sum == (SIZE / 2) * (3 * SIZE / 2 - 1) / 2 ? 0 : 1);
+    }
+
+    // Parent: overwrite the second half only
+    for (i = SIZE / 2; i < SIZE; i++)
+        data[i] = 0;
+
+    if (join(pid, &status) != 1 || status != 0) {
+        printf("child saw the wrong memory (status %d)\n", status);
+        exit(1);
+    }
+
+    sum = 0;
+    for (i = 0; i < SIZE; i++)
+        sum += data[i];
+    if (sum != (SIZE / 2) * (SIZE / 2 - 1) / 2) {
+        printf("parent saw the child's writes\n");
+        exit(1);
+    }
+
+    fd = creat("fork.out");
+    saved = dup(fdStandardOutput);
+    if (fd < 0 || saved < 0 || dup2(fd, fdStandardOutput) != fdStandardOutput) {
+        printf("could not redirect standard output\n");
+        exit(1);
+    }
+    close(fd);
+
+    pid = fork();
+    if (pid == 0) {
+        write(fdStandardOutput, "child\n", 6);
+        exit(0);
+    }
+    join(pid, &status);
+
+    dup2(saved, fdStandardOutput);
+    close(saved);
+
+    fd = open("fork.out");
+    n = read(fd, buf, sizeof(buf) - 1);
+    close(fd);
+    unlink("fork.out");
+
+    if (n != 6 || strncmp(buf, "child\n", 6) != 0) {
+        printf("child did not inherit standard output\n");
+        exit(1);
+    }
+
+    printf("fork: parent and child memory are independent\n");
+    return 0;
+}
@@ -0,0 +1,65 @@
+/**
+ * Test program for the executable image cache in Nachos. Copies exit1.coff
+ * into a new file and runs it, which caches its image, then overwrites the
+ * file with echo.coff through a descriptor opened beforehand, and runs it
+ * again. The second exec() must load the new contents.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+char buf[16384];
+
+int copy(char *from, int to) {
+    int fd, n;
+
+    fd = open(from);
+    if (fd < 0)
+        return -1;
+    n = read(fd, buf, sizeof(buf));
+    close(fd);
+
+    return (n > 0 && write(to, buf, n) == n) ? 0 : -1;
+}
+
+int run(char *name) {
+    int pid, status;
+
+    pid = exec(name, 0, 0);
+    if (pid < 0 || join(pid, &status) != 1)
+        return -1;
+    return status;
+}
+
+int main() {
+    int first, second, status;
+
+    first = creat("image.coff");
+    second = open("image.coff");
+    if (first < 0 || second < 0 || copy("exit1.coff", first) != 0) {
+        printf("could not write image.coff\n");
+        exit(1);
+    }
+    close(first);
+
+    if (run("image.coff") != 123) {
+        printf("image.coff did not run as exit1\n");
+        exit(1);
+    }
+
+    if (copy("echo.coff", second) != 0) {
+        printf("could not rewrite image.coff\n");
+        exit(1);
+    }
+    status = run("image.coff");
+    close(second);
+    unlink("image.coff");
+
+    if (status != 0) {
+        printf("stale image was run (status %d)\n", status);
+        exit(1);
+    }
+
+    printf("imgcache: rewritten executable reloaded\n");
+    return 0;
+}
@@ -0,0 +1,52 @@
+/**
+ * Test program for the mmap() and munmap() syscalls in Nachos.
+ * Maps a file, reads it through memory, modifies it in place, unmaps it and
+ * checks with read() that the modification reached the file.
+ */
+
+#include "syscall.h"
+
+int main() {
+    char filename[] = "test_mmap.txt";
+    char message[] = "mapped file contents\n";
+    char buffer[32];
+    char *map;
+    int fd, i;
+
+    fd = creat(filename);
+    if (fd < 0) {
+        write(fdStandardOutput, "File creation failed\n", 21);
+        exit(1);
+    }
+    write(fd, message, sizeof(message) - 1);
+
+    map = mmap(fd, 0, sizeof(message) - 1);
+    close(fd);
+    if (map == (char *) -1) {
+        write(fdStandardOutput, "mmap failed\n", 12);
+        exit(1);
+    }
+
+    // Read the file through the mapping
+    write(fdStandardOutput, map, sizeof(message) - 1);
+
+    // Upper-case the first word in place
+    for (i = 0; i < 6; i++)
+        map[i] -= 'a' - 'A';
+
+    if (munmap(map) != 0) {
+        write(fdStandardOutput, "munmap failed\n", 14);
+        exit(1);
+    }
+
+    fd = open(filename);
+    if (read(fd, buffer, sizeof(message) - 1) != sizeof(message) - 1) {
+        write(fdStandardOutput, "read back failed\n", 17);
+        exit(1);
+    }
+    close(fd);
+    write(fdStandardOutput, buffer, sizeof(message) - 1);
+
+    unlink(filename);
+    return 0;
+}
@@ -0,0 +1,64 @@
+/**
+ * Pipe throughput benchmark. Streams TOTAL bytes through a pipe to a
+ * pipesink child, in writes of the given chunk size:
+ *
+ *   pipebench [capacity [chunk [splice]]]
+ *
+ * With "splice", the sink moves the data into a file with splice() instead
+ * of reading it. Compare the tick counts Nachos prints when it halts.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define TOTAL (256 * 1024)
+#define MAX_CHUNK 8192
+
+char buf[MAX_CHUNK];
+
+int main(int argc, char *argv[]) {
+    int capacity = argc > 0 ? atoi(argv[0]) : 4096;
+    int chunk = argc > 1 ? atoi(argv[1]) : 1024;
+    char *sinkArgv[1];
+    int i, fd, pid, status, sent, n;
+
+    if (chunk <= 0 || chunk > MAX_CHUNK) {
+        printf("chunk must be between 1 and %d\n", MAX_CHUNK);
+        exit(1);
+    }
+
+    for (i = 0; i < chunk; i++)
+        buf[i] = 'a' + i % 26;
+
+    fd = mkpipe("/pipe/bench", capacity);
+    if (fd < 0) {
+        printf("mkpipe failed\n");
+        exit(1);
+    }
+
+    sinkArgv[0] = argc > 2 ? argv[2] : "read";
+    pid = exec("pipesink.coff", 1, sinkArgv);
+    if (pid < 0) {
+        printf("exec failed\n");
+        exit(1);
+    }
+
+    for (sent = 0; sent < TOTAL; sent += n) {
+        n = TOTAL - sent < chunk ? TOTAL - sent : chunk;
+        if (write(fd, buf, n) != n) {
+            printf("write failed after %d bytes\n", sent);
+            exit(1);
+        }
+    }
+    close(fd);
+
+    if (join(pid, &status) != 1 || status != TOTAL / 1024) {
+        printf("sink received the wrong amount (status %d)\n", status);
+        exit(1);
+    }
+
+    unlink("/pipe/bench");
+    printf("pipebench: %d bytes, capacity %d, chunk %d\n", TOTAL, capacity, chunk);
+    return 0;
+}
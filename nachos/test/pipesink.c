@@ -0,0 +1,38 @@
+/**
+ * Consumer half of pipebench. Drains /pipe/bench until the writer closes it,
+ * either with read() or, given "splice", with splice() into a file. Exits
+ * with the number of kilobytes received.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define CHUNK 4096
+
+char buf[CHUNK];
+
+int main(int argc, char *argv[]) {
+    int fd, out, n, total;
+
+    fd = open("/pipe/bench");
+    if (fd < 0)
+        exit(-1);
+
+    total = 0;
+    if (argc > 0 && strcmp(argv[0], "splice") == 0) {
+        out = creat("pipebench.out");
+        if (out < 0)
+            exit(-1);
+        while ((n = splice(fd, out, CHUNK)) > 0)
+            total += n;
+        close(out);
+        unlink("pipebench.out");
+    } else {
+        while ((n = read(fd, buf, CHUNK)) > 0)
+            total += n;
+    }
+
+    close(fd);
+    exit(total / 1024);
+}
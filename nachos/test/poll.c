@@ -0,0 +1,79 @@
+/**
+ * Test program for the poll() syscall in Nachos. The parent waits on two
+ * pipes at once; a forked child writes to one of them after a delay, and
+ * the parent should wake up with only that pipe readable. Finally it polls
+ * many times with a long timeout on a pipe that is already ready.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+int main() {
+    struct pollfd fds[2];
+    int writerA, fd, pid, status, n, i;
+    char c;
+
+    writerA = creat("/pipe/pollA");
+    fds[0].fd = open("/pipe/pollA");
+    fds[0].events = POLLIN;
+    if (writerA < 0 || fds[0].fd < 0) {
+        printf("could not create pipe\n");
+        exit(1);
+    }
+
+    if (poll(fds, 1, 0) != 0) {
+        printf("empty pipe polled as ready\n");
+        exit(1);
+    }
+
+    if (poll(fds, 1, 2000) != 0) {
+        printf("poll did not time out\n");
+        exit(1);
+    }
+
+    pid = fork();
+    if (pid < 0) {
+        printf("fork failed\n");
+        exit(1);
+    }
+
+    if (pid == 0) {
+        // Child: descriptors are not inherited, so make a second pipe and
+        // write to it once the parent is asleep in poll().
+        fd = creat("/pipe/pollB");
+        poll(0, 0, 5000);
+        exit(write(fd, "x", 1) == 1 ? 0 : 1);
+    }
+
+    while ((fds[1].fd = open("/pipe/pollB")) < 0)
+        poll(0, 0, 100);
+    fds[1].events = POLLIN;
+
+    n = poll(fds, 2, -1);
+    if (n != 1 || fds[0].revents != 0 || !(fds[1].revents & POLLIN)) {
+        printf("wrong events: %d %d %d\n", n, fds[0].revents, fds[1].revents);
+        exit(1);
+    }
+
+    read(fds[1].fd, &c, 1);
+    join(pid, &status);
+
+    close(writerA);
+    n = poll(fds, 1, -1);
+    if (n != 1 || !(fds[0].revents & POLLHUP)) {
+        printf("closed pipe not reported\n");
+        exit(1);
+    }
+
+    // A poll that returns early must not leave anything behind waiting out
+    // its timeout.
+    for (i = 0; i < 300; i++) {
+        if (poll(fds, 1, 1000000) != 1) {
+            printf("ready pipe not reported\n");
+            exit(1);
+        }
+    }
+
+    printf("poll: readiness reported correctly\n");
+    return 0;
+}
@@ -0,0 +1,57 @@
+/**
+ * Test program for the sbrk() syscall in Nachos. Grows the heap well past
+ * the size of physical memory, checks that new pages read as zeros, then
+ * shrinks it and grows it again.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define HEAPINTS	(32 * 1024)
+
+int main() {
+    int *heap, i, sum;
+    char *start;
+
+    start = sbrk(0);
+    heap = (int *) sbrk(HEAPINTS * sizeof(int));
+    if ((char *) heap != start) {
+        printf("sbrk returned %x, expected %x\n", (int) heap, (int) start);
+        exit(1);
+    }
+
+    for (i = 0; i < HEAPINTS; i++) {
+        if (heap[i] != 0) {
+            printf("heap[%d] not zero-filled\n", i);
+            exit(1);
+        }
+        heap[i] = i;
+    }
+
+    sum = 0;
+    for (i = 0; i < HEAPINTS; i++)
+        sum += heap[i];
+
+    /* Shrinking and growing again must give back fresh zero pages. */
+    if (sbrk(-HEAPINTS * (int) sizeof(int)) == (char *) -1
+        || sbrk(0) != start) {
+        printf("shrink failed\n");
+        exit(1);
+    }
+    heap = (int *) sbrk(1024);
+    for (i = 0; i < 256; i++) {
+        if (heap[i] != 0) {
+            printf("regrown heap[%d] not zero-filled\n", i);
+            exit(1);
+        }
+    }
+
+    if (sbrk(-8192) != (char *) -1) {
+        printf("shrank below the start of the heap\n");
+        exit(1);
+    }
+
+    printf("sbrk: %d bytes of heap, sum %d\n", HEAPINTS * sizeof(int), sum);
+    return sum == (HEAPINTS / 2) * (HEAPINTS - 1) ? 0 : 1;
+}
@@ -0,0 +1,32 @@
+/**
+ * Test program for read-ahead on page faults in Nachos. Fills an array much
+ * larger than physical memory, then sums it twice from front to back, so
+ * each pass faults its pages back in from swap in order.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define NUMINTS		(16 * 1024)
+
+int data[NUMINTS];
+
+int main() {
+    int i, pass, sum;
+
+    for (i = 0; i < NUMINTS; i++)
+        data[i] = i;
+
+    for (pass = 0; pass < 2; pass++) {
+        sum = 0;
+        for (i = 0; i < NUMINTS; i++)
+            sum += data[i];
+        if (sum != (NUMINTS / 2) * (NUMINTS - 1)) {
+            printf("scan: pass %d sum %d\n", pass, sum);
+            return 1;
+        }
+    }
+
+    printf("scan: summed %d ints twice, sum %d\n", NUMINTS, sum);
+    return 0;
+}
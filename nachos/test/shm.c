@@ -0,0 +1,71 @@
+/**
+ * Test program for the shmget(), shmat() and shmdt() syscalls in Nachos.
+ * A forked child fills a shared segment; after joining, the parent should
+ * see everything the child wrote.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define KEY 42
+#define SIZE 4096
+
+int main() {
+    int i, id, pid, status;
+    int *shared;
+
+    id = shmget(KEY, SIZE * sizeof(int));
+    if (id < 0) {
+        printf("shmget failed\n");
+        exit(1);
+    }
+
+    shared = (int *) shmat(id);
+    if ((int) shared == -1) {
+        printf("shmat failed\n");
+        exit(1);
+    }
+
+    for (i = 0; i < SIZE; i++) {
+        if (shared[i] != 0) {
+            printf("new segment is not zero-filled\n");
+            exit(1);
+        }
+    }
+
+    pid = fork();
+    if (pid < 0) {
+        printf("fork failed\n");
+        exit(1);
+    }
+
+    if (pid == 0) {
+        // Child: shared memory is not inherited, so attach it again by key
+        shared = (int *) shmat(shmget(KEY, SIZE * sizeof(int)));
+        if ((int) shared == -1)
+            exit(1);
+        for (i = 0; i < SIZE; i++)
+            shared[i] = i;
+        exit(shmdt((char *) shared));
+    }
+
+    if (join(pid, &status) != 1 || status != 0) {
+        printf("child could not use the segment (status %d)\n", status);
+        exit(1);
+    }
+
+    for (i = 0; i < SIZE; i++) {
+        if (shared[i] != i) {
+            printf("parent did not see the child's writes at %d\n", i);
+            exit(1);
+        }
+    }
+
+    if (shmdt((char *) shared) != 0) {
+        printf("shmdt failed\n");
+        exit(1);
+    }
+
+    printf("shm: writes are visible across processes\n");
+    return 0;
+}
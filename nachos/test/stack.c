@@ -0,0 +1,28 @@
+/**
+ * Test program for on-demand stack growth in Nachos. Recurses deeply enough
+ * to need well over the single stack page a process starts with, with a
+ * local array in every frame.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define DEPTH	200
+
+int recurse(int depth) {
+    int frame[16];
+    int i;
+
+    for (i = 0; i < 16; i++)
+        frame[i] = depth;
+    if (depth == 0)
+        return 0;
+    return recurse(depth - 1) + frame[depth % 16];
+}
+
+int main() {
+    int sum = recurse(DEPTH);
+
+    printf("stack: recursed %d deep, sum %d\n", DEPTH, sum);
+    return sum == DEPTH * (DEPTH + 1) / 2 ? 0 : 1;
+}
@@ -67,3 +67,18 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(mkpipe, syscallMkpipe)
+	SYSCALLSTUB(splice, syscallSplice)
+	SYSCALLSTUB(io_setup, syscallIoSetup)
+	SYSCALLSTUB(io_enter, syscallIoEnter)
+	SYSCALLSTUB(poll, syscallPoll)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(sbrk, syscallSbrk)
@@ -0,0 +1,59 @@
+/**
+ * Fault-storm test for the VM locking in Nachos. Forks three children, and
+ * all four processes then write one word in every page of their own quarter
+ * of a large BSS array, over and over, so nearly every store faults and
+ * each process's faults evict pages the others have dirtied. With fewer
+ * than 64 frames, total ticks show whether faults in one process wait
+ * behind swap writes for another.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define NUMPROCS	4
+#define NUMPAGES	16
+#define PAGEINTS	256
+#define PASSES		20
+
+int data[NUMPROCS][NUMPAGES * PAGEINTS];
+
+int sweep(int index) {
+    int *row = data[index];
+    int i, pass, sum;
+
+    for (pass = 0; pass < PASSES; pass++)
+        for (i = 0; i < NUMPAGES; i++)
+            row[i * PAGEINTS] += i + 1;
+
+    sum = 0;
+    for (i = 0; i < NUMPAGES; i++)
+        sum += row[i * PAGEINTS];
+    return sum;
+}
+
+int main() {
+    int pids[NUMPROCS];
+    int i, pid, status, sum;
+
+    for (i = 1; i < NUMPROCS; i++) {
+        pid = fork();
+        if (pid < 0) {
+            printf("storm: fork failed\n");
+            exit(-1);
+        }
+        if (pid == 0)
+            exit(sweep(i));
+        pids[i] = pid;
+    }
+
+    sum = sweep(0);
+    for (i = 1; i < NUMPROCS; i++) {
+        if (join(pids[i], &status) != 1 || status != sum) {
+            printf("storm: child %d saw the wrong memory\n", i);
+            exit(-2);
+        }
+    }
+
+    printf("storm: sum %d\n", sum);
+    return sum;
+}
@@ -25,6 +25,21 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
+#define syscallFork		16
+#define syscallShmget		17
+#define syscallShmat		18
+#define syscallShmdt		19
+#define syscallMkpipe		20
+#define syscallSplice		21
+#define syscallIoSetup		22
+#define syscallIoEnter		23
+#define syscallPoll		24
+#define syscallDup		25
+#define syscallDup2		26
+#define syscallSbrk		27
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -70,8 +85,10 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and starts with file descriptors 0 and 1 referring to the same
+ * files as the parent's descriptors 0 and 1, so a parent can redirect the
+ * child's input and output with dup2() before calling exec(). No other
+ * descriptors are inherited.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -92,6 +109,178 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * starts with the same memory contents and registers as its parent, and
+ * resumes by returning from fork(). Pages are shared between the two until
+ * one of them writes, so forking costs little regardless of program size.
+ * The child starts with only stdin and stdout open, and does not inherit
+ * mappings made with mmap() or segments attached with shmat().
+ *
+ * In the parent, fork() returns the child's process ID, which can be passed
+ * to join(). In the child, fork() returns 0. On error, returns -1.
+ */
+int fork();
+
+/**
+ * Find or create the shared memory segment identified by key. A new segment
+ * is created with room for size bytes, rounded up to a whole number of
+ * pages, and is initially zero-filled. Opening an existing segment with a
+ * larger size than it was created with is an error.
+ *
+ * Returns the segment ID, which can be passed to shmat(), or -1 on error.
+ */
+int shmget(int key, int size);
+
+/**
+ * Attach the shared memory segment with the given ID to this process. Every
+ * process that attaches the same segment sees the others' writes to it.
+ *
+ * Returns the address of the attached segment, or -1 on error.
+ */
+char *shmat(int id);
+
+/**
+ * Detach the segment attached at address. A segment is destroyed once it has
+ * been detached by every process that attached it; segments still attached
+ * at exit are detached automatically.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at address.
+ */
+int shmdt(char *address);
+
+/**
+ * Grow or shrink the heap by increment bytes, which may be negative. The heap
+ * starts out empty just above the stack and argument page, and may grow to a
+ * limit set by the kernel. New heap memory reads as zeros.
+ *
+ * Returns the previous end of the heap, so sbrk(0) returns the current end,
+ * or -1 if the heap would shrink below its start or grow past its limit, or
+ * there is not enough memory.
+ */
+char *sbrk(int increment);
+
+/**
+ * Create a pipe named name, which must begin with "/pipe/", that can buffer
+ * up to capacity bytes. Calling creat() on such a name creates a pipe with a
+ * capacity of 4096 bytes. Another process reads from the pipe by calling
+ * open() on the same name.
+ *
+ * Returns a file descriptor for writing to the pipe, or -1 on error.
+ */
+int mkpipe(char *name, int capacity);
+
+/**
+ * Move up to length bytes between a pipe and a file without copying them
+ * through user memory. Either fdIn must be the reading end of a pipe, or
+ * fdOut must be the writing end of a pipe, and the other descriptor must
+ * not be a pipe. Like read(), splice() waits until it can move at least one
+ * byte, then moves as much as is available.
+ *
+ * Returns the number of bytes moved, 0 if fdIn is a pipe whose writer has
+ * closed it and it is empty, or -1 on error.
+ */
+int splice(int fdIn, int fdOut, int length);
+
+/* Asynchronous I/O operations, for the opcode field of struct io_sqe. */
+#define IO_READ		0
+#define IO_WRITE	1
+#define IO_OPEN		2
+#define IO_CLOSE	3
+
+/* One queued operation. IO_READ and IO_WRITE transfer length bytes between
+ * buf and fd, at byte offset if it is non-negative, or at the file's current
+ * position if it is -1. IO_OPEN opens the file named by buf, creating it if
+ * length is non-zero, and completes with the new file descriptor. IO_CLOSE
+ * closes fd. user_data is copied unchanged into the completion.
+ *
+ * A read or write on a pipe or the console completes once it can proceed.
+ * Every read and write holds its file open until it completes, even if fd
+ * is closed in the meantime.
+ */
+struct io_sqe {
+    int opcode;
+    int fd;
+    void *buf;
+    int length;
+    int offset;
+    int user_data;
+};
+
+/* One finished operation. result is what the equivalent synchronous call
+ * would have returned.
+ */
+struct io_cqe {
+    int user_data;
+    int result;
+};
+
+/* A submission and completion queue pair, shared between a program and the
+ * kernel. The program fills in sq and cq before calling io_setup(). It then
+ * queues an operation by writing sq[sq_tail % entries] and incrementing
+ * sq_tail, and consumes a completion by reading cq[cq_head % entries] and
+ * incrementing cq_head. The kernel advances sq_head and cq_tail.
+ */
+struct io_ring {
+    int sq_head;
+    int sq_tail;
+    int cq_head;
+    int cq_tail;
+    int entries;
+    struct io_sqe *sq;
+    struct io_cqe *cq;
+};
+
+/**
+ * Register ring, whose sq and cq arrays must each hold entries elements,
+ * for asynchronous I/O. Resets the ring's indices. A process can register
+ * only one ring.
+ *
+ * Returns 0 on success, or -1 on error.
+ */
+int io_setup(struct io_ring *ring, int entries);
+
+/**
+ * Hand up to toSubmit queued operations to the kernel, which performs them
+ * in the background, then wait until at least minComplete completions are
+ * ready or no operations remain in flight. Completions are only added to the
+ * completion queue during io_enter(), so call it with toSubmit and
+ * minComplete both 0 to collect finished operations without waiting.
+ *
+ * Operations may complete in any order. Operations on the same file that
+ * use its current position may run in any order, too.
+ *
+ * Returns the number of operations submitted, or -1 on error.
+ */
+int io_enter(int toSubmit, int minComplete);
+
+/* Events for the events and revents fields of struct pollfd. */
+#define POLLIN		0x01	/* data can be read without blocking */
+#define POLLOUT		0x04	/* data can be written without blocking */
+#define POLLHUP		0x10	/* the other end has been closed */
+#define POLLNVAL	0x20	/* fd is not open */
+
+struct pollfd {
+    int fd;
+    int events;
+    int revents;
+};
+
+/**
+ * Wait until at least one of the nfds descriptors in fds is ready for one of
+ * the events it asks for, and set each descriptor's revents to the events
+ * that are ready. POLLHUP and POLLNVAL are reported even if not requested.
+ * Pipes and the console wait for data or space; regular files are always
+ * ready.
+ *
+ * timeout is in ticks. A timeout of 0 returns at once, and a negative
+ * timeout waits indefinitely.
+ *
+ * Returns the number of descriptors with non-zero revents, 0 if the timeout
+ * expired first, or -1 on error.
+ */
+int poll(struct pollfd *fds, int nfds, int timeout);
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -195,6 +384,25 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Return a new file descriptor, the lowest one not currently open, that
+ * refers to the same file as fileDescriptor. The two descriptors share the
+ * file's position, and the file stays open until both are closed.
+ *
+ * Returns the new file descriptor, or -1 if fileDescriptor is invalid or the
+ * process has too many open files.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newFileDescriptor refer to the same file as fileDescriptor, first
+ * closing whatever newFileDescriptor referred to.
+ *
+ * Returns newFileDescriptor, or -1 if fileDescriptor is invalid or
+ * newFileDescriptor is out of range.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
 /**
  * Delete a file from the file system. 
  *
@@ -210,18 +418,59 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * One buffer of a scatter/gather transfer: length bytes starting at base.
+ */
+struct iovec {
+    void *base;
+    int length;
+};
+
+/**
+ * Like read(), but scatter the bytes read into the iovcnt buffers described
+ * by iov, filling each buffer completely before moving on to the next. The
+ * whole transfer is performed as a single read of the file or stream, so the
+ * file position is advanced only once.
+ *
+ * iovcnt may be at most 64, and the buffers may total at most 1MB.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the bytes to write from the iovcnt buffers
+ * described by iov, in order. The buffers are written to the file or stream
+ * as a single write, so the file position is advanced only once.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * iovcnt may be at most 64, and the buffers may total at most 1MB.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Map length bytes of the file referenced by fileDescriptor, starting at byte
+ * offset of the file, into unused pages of this process's address space.
+ * offset must be a multiple of the page size. Pages of the mapping are read
+ * from the file when first touched, and modified pages are written back to
+ * the file when they are evicted, when the mapping is removed with munmap(),
+ * or when the process exits. Bytes of the mapping past the end of the file
+ * read as zero.
+ *
+ * The mapping holds its own reference to the file, so fileDescriptor may be
+ * closed once mmap() returns. Only disk files can be mapped.
+ *
+ * Returns the address of the first mapped byte, or -1 if an error occurred.
+ */
+char *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the mapping created by mmap() that starts at address, writing any
+ * modified pages back to the file first.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if address is not the start of a mapping.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -0,0 +1,66 @@
+/**
+ * Test program for the readv() and writev() syscalls in Nachos.
+ * Writes a file from several pieces with one writev(), then reads it back
+ * into several buffers with one readv().
+ */
+
+#include "syscall.h"
+
+int main() {
+    char filename[] = "test_writev.txt";
+    char header[] = "header:";
+    char body[] = "body:";
+    char trailer[] = "trailer\n";
+    struct iovec iov[3];
+    int fd, result;
+
+    fd = creat(filename);
+    if (fd < 0) {
+        write(fdStandardOutput, "File creation failed\n", 21);
+        exit(1);
+    }
+
+    // Gather three buffers into a single write
+    iov[0].base = header;
+    iov[0].length = sizeof(header) - 1;
+    iov[1].base = body;
+    iov[1].length = sizeof(body) - 1;
+    iov[2].base = trailer;
+    iov[2].length = sizeof(trailer) - 1;
+
+    result = writev(fd, iov, 3);
+    close(fd);
+    if (result != iov[0].length + iov[1].length + iov[2].length) {
+        write(fdStandardOutput, "writev failed\n", 14);
+        exit(1);
+    }
+
+    // Scatter the file back into buffers of different sizes
+    char first[4], second[8], rest[32];
+    iov[0].base = first;
+    iov[0].length = sizeof(first);
+    iov[1].base = second;
+    iov[1].length = sizeof(second);
+    iov[2].base = rest;
+    iov[2].length = sizeof(rest);
+
+    fd = open(filename);
+    if (fd < 0) {
+        write(fdStandardOutput, "Failed to open file for reading\n", 32);
+        exit(1);
+    }
+
+    int bytesRead = readv(fd, iov, 3);
+    close(fd);
+    if (bytesRead != result) {
+        write(fdStandardOutput, "readv failed\n", 13);
+        exit(1);
+    }
+
+    // Echo the pieces to stdout with a single writev
+    iov[2].length = bytesRead - sizeof(first) - sizeof(second);
+    writev(fdStandardOutput, iov, 3);
+
+    unlink(filename);
+    return 0;
+}
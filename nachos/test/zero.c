@@ -0,0 +1,38 @@
+/**
+ * Test program for the shared zero page in Nachos. Reads a BSS array four
+ * times the size of a 16-frame memory, which should need no frames of its
+ * own, then zeroes it by hand so its pages are dropped rather than swapped
+ * when evicted, and finally writes and sums the first few pages.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define NUMINTS		(16 * 1024)
+#define SETINTS		1024
+
+int big[NUMINTS];
+
+int main() {
+    int i, sum;
+
+    sum = 0;
+    for (i = 0; i < NUMINTS; i++)
+        sum += big[i];
+    if (sum != 0) {
+        printf("zero: BSS not zero-filled\n");
+        return 1;
+    }
+
+    for (i = 0; i < NUMINTS; i++)
+        big[i] = 0;
+    for (i = 0; i < SETINTS; i++)
+        big[i] = i;
+
+    sum = 0;
+    for (i = 0; i < NUMINTS; i++)
+        sum += big[i];
+
+    printf("zero: sum %d\n", sum);
+    return sum == (SETINTS / 2) * (SETINTS - 1) ? 0 : 1;
+}
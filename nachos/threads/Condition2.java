@@ -44,17 +44,24 @@ long now = Machine.timer().getTime();
     Machine.interrupt().restore(intStat);
 	}
 private static class TimeEntry {
-    KThread t; long tgt;
-    TimeEntry(KThread t,long tgt){ this.t=t; this.tgt=tgt; }
+    KThread t; long tgt; Condition2 cond;
+    TimeEntry(KThread t,long tgt,Condition2 cond){ this.t=t; this.tgt=tgt; this.cond=cond; }
 }
+private HashMap<KThread,TimeEntry> timedWaiters = new HashMap<>();
 
 
 public void sleepFor(long x) {
     if (x<=0){ sleep(); return; }
 
+    Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
     long wake = Machine.timer().getTime()+x;
     boolean intStat = Machine.interrupt().disable();
-    globalTimed.add(new TimeEntry(KThread.currentThread(),wake)); // try using global time instead of instance timed queue
+    // wait on both queues; whichever of wake() and the timeout comes first takes the thread off the other
+    TimeEntry entry = new TimeEntry(KThread.currentThread(),wake,this);
+    waitQueue.add(KThread.currentThread());
+    timedWaiters.put(KThread.currentThread(),entry);
+    globalTimed.add(entry); // try using global time instead of instance timed queue
     conditionLock.release();
     KThread.sleep();
     conditionLock.acquire();
@@ -63,10 +70,18 @@ public void sleepFor(long x) {
 public static void handleTimeouts(long now){
     boolean intStat = Machine.interrupt().disable();
     while (!globalTimed.isEmpty() && globalTimed.peek().tgt<=now){
-        globalTimed.poll().t.ready();
+        TimeEntry e = globalTimed.poll();
+        e.cond.waitQueue.remove(e.t);
+        e.cond.timedWaiters.remove(e.t);
+        e.t.ready();
     }
     Machine.interrupt().restore(intStat);
 }
+private void readyWaiter(KThread t){
+    TimeEntry e = timedWaiters.remove(t);
+    if (e!=null) globalTimed.remove(e);
+    t.ready();
+}
 
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
@@ -78,7 +93,7 @@ public static void handleTimeouts(long now){
 
     boolean intStat = Machine.interrupt().disable();
     if (!waitQueue.isEmpty())
-        waitQueue.removeFirst().ready();
+        readyWaiter(waitQueue.removeFirst());
     Machine.interrupt().restore(intStat);
 	}
 
@@ -93,7 +108,7 @@ public static void handleTimeouts(long now){
             Machine.interrupt().restore(intStat);
             break;
         }
-        waitQueue.removeFirst().ready();
+        readyWaiter(waitQueue.removeFirst());
         Machine.interrupt().restore(intStat);
     }
 	}
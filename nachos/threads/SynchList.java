@@ -50,6 +50,19 @@ public class SynchList {
 		return o;
 	}
 
+	/**
+	 * Test whether the queue is empty.
+	 * 
+	 * @return <tt>true</tt> if <tt>removeFirst()</tt> would block.
+	 */
+	public boolean isEmpty() {
+		lock.acquire();
+		boolean empty = list.isEmpty();
+		lock.release();
+
+		return empty;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -0,0 +1,213 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A process's table of open file descriptors. The table starts small and
+ * grows on demand up to a per-process limit. A bitmap of used slots finds
+ * the lowest free descriptor a word at a time.
+ *
+ * <p>
+ * Each slot refers to a shared <tt>Description</tt> that counts the
+ * descriptors referring to it, in this table or in others, so the
+ * underlying <tt>OpenFile</tt> is closed only when the last of them is.
+ */
+public class FileDescriptorTable {
+	/**
+	 * Allocate a new, empty descriptor table.
+	 *
+	 * @param limit the largest number of descriptors the table may hold.
+	 */
+	public FileDescriptorTable(int limit) {
+		Lib.assertTrue(limit > 0);
+
+		this.limit = limit;
+		descriptions = new Description[Math.min(initialSize, limit)];
+		used = new long[(limit + 63) / 64];
+	}
+
+	/**
+	 * Return the file referred to by a descriptor.
+	 *
+	 * @return the file, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	public OpenFile get(int fd) {
+		if (fd < 0 || fd >= descriptions.length || descriptions[fd] == null)
+			return null;
+		return descriptions[fd].file;
+	}
+
+	/**
+	 * Open a new descriptor for <i>file</i>, using the lowest free number.
+	 *
+	 * @return the new descriptor, or -1 if the table is full.
+	 */
+	public int add(OpenFile file) {
+		int fd = lowestFree();
+		if (fd == -1)
+			return -1;
+
+		install(fd, new Description(file));
+		return fd;
+	}
+
+	/**
+	 * Open a new descriptor, using the lowest free number, that refers to the
+	 * same file as <i>fd</i>.
+	 *
+	 * @return the new descriptor, or -1 if <i>fd</i> is not open or the table
+	 * is full.
+	 */
+	public int dup(int fd) {
+		if (get(fd) == null)
+			return -1;
+
+		int newFD = lowestFree();
+		if (newFD == -1)
+			return -1;
+
+		descriptions[fd].references++;
+		install(newFD, descriptions[fd]);
+		return newFD;
+	}
+
+	/**
+	 * Make <i>newFD</i> refer to the same file as <i>fd</i>, closing whatever
+	 * <i>newFD</i> referred to before.
+	 *
+	 * @return <i>newFD</i>, or -1 if <i>fd</i> is not open or <i>newFD</i> is
+	 * out of range.
+	 */
+	public int dup2(int fd, int newFD) {
+		return copyFrom(this, fd, newFD) ? newFD : -1;
+	}
+
+	/**
+	 * Make <i>newFD</i> in this table refer to the same file as <i>fd</i> in
+	 * <i>other</i>, closing whatever <i>newFD</i> referred to before.
+	 *
+	 * @return <tt>true</tt> on success, or <tt>false</tt> if <i>fd</i> is
+	 * not open or <i>newFD</i> is out of range.
+	 */
+	public boolean copyFrom(FileDescriptorTable other, int fd, int newFD) {
+		if (other.get(fd) == null || newFD < 0 || newFD >= limit)
+			return false;
+
+		Description description = other.descriptions[fd];
+		if (newFD < descriptions.length && descriptions[newFD] == description)
+			return true;
+
+		description.references++;
+		close(newFD);
+		install(newFD, description);
+		return true;
+	}
+
+	/**
+	 * Take a reference on the file a descriptor refers to. The file stays
+	 * open, even if every descriptor for it is closed, until the reference
+	 * is released.
+	 *
+	 * @return the reference, or <tt>null</tt> if <i>fd</i> is not open.
+	 */
+	Description hold(int fd) {
+		if (get(fd) == null)
+			return null;
+
+		descriptions[fd].references++;
+		return descriptions[fd];
+	}
+
+	/**
+	 * Close a descriptor. The underlying file is closed if no other
+	 * descriptor refers to it.
+	 *
+	 * @return <tt>true</tt> if <i>fd</i> was open.
+	 */
+	public boolean close(int fd) {
+		if (get(fd) == null)
+			return false;
+
+		OpenFile file = remove(fd);
+		if (file != null)
+			file.close();
+		return true;
+	}
+
+	/**
+	 * Close a descriptor without closing the underlying file.
+	 *
+	 * @return the file if this was its last descriptor, in which case the
+	 * caller must close it, or <tt>null</tt> otherwise.
+	 */
+	public OpenFile remove(int fd) {
+		if (get(fd) == null)
+			return null;
+
+		Description description = descriptions[fd];
+		descriptions[fd] = null;
+		used[fd / 64] &= ~(1L << (fd % 64));
+
+		return (--description.references == 0) ? description.file : null;
+	}
+
+	/**
+	 * Close every descriptor in the table.
+	 */
+	public void closeAll() {
+		for (int fd = 0; fd < descriptions.length; fd++)
+			close(fd);
+	}
+
+	private int lowestFree() {
+		for (int i = 0; i < used.length; i++) {
+			if (used[i] != -1L) {
+				int fd = i * 64 + Long.numberOfTrailingZeros(~used[i]);
+				return (fd < limit) ? fd : -1;
+			}
+		}
+		return -1;
+	}
+
+	private void install(int fd, Description description) {
+		if (fd >= descriptions.length) {
+			int size = descriptions.length;
+			while (size <= fd)
+				size *= 2;
+			descriptions = Arrays.copyOf(descriptions, Math.min(size, limit));
+		}
+
+		descriptions[fd] = description;
+		used[fd / 64] |= 1L << (fd % 64);
+	}
+
+	static class Description {
+		Description(OpenFile file) {
+			this.file = file;
+		}
+
+		OpenFile getFile() {
+			return file;
+		}
+
+		/**
+		 * Drop a reference taken by <tt>hold()</tt>, closing the file if
+		 * nothing else refers to it.
+		 */
+		void release() {
+			if (--references == 0)
+				file.close();
+		}
+
+		OpenFile file;
+		int references = 1;
+	}
+
+	private static final int initialSize = 16;
+
+	private int limit;
+	private Description[] descriptions;
+	private long[] used;
+}
@@ -0,0 +1,276 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A buddy allocator for physical page frames. Free frames are kept in blocks
+ * of 2<sup>k</sup> frames, one free list per order, so that single frames
+ * and contiguous runs are both found in time logarithmic in the size of
+ * memory. A freed block is merged with its buddy whenever the buddy is free
+ * too.
+ *
+ * <p>
+ * A bitmap of free frames is kept alongside the free lists. It is scanned a
+ * word at a time to measure fragmentation.
+ *
+ * <p>
+ * The allocator does no locking of its own; callers must serialize access.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new allocator with every frame free.
+	 *
+	 * @param numFrames the number of physical page frames.
+	 */
+	public FrameAllocator(int numFrames) {
+		Lib.assertTrue(numFrames > 0);
+
+		this.numFrames = numFrames;
+		maxOrder = 31 - Integer.numberOfLeadingZeros(numFrames);
+
+		next = new int[numFrames];
+		prev = new int[numFrames];
+		blockOrder = new byte[numFrames];
+		heads = new int[maxOrder + 1];
+		freeMap = new long[(numFrames + 63) / 64];
+
+		Arrays.fill(blockOrder, (byte) -1);
+		Arrays.fill(heads, -1);
+
+		// Cover memory with the largest aligned blocks that fit.
+		int frame = 0;
+		while (frame < numFrames) {
+			int order = Math.min(maxOrder, Integer.numberOfTrailingZeros(frame));
+			while (frame + (1 << order) > numFrames)
+				order--;
+			push(frame, order);
+			markFree(frame, 1 << order, true);
+			frame += 1 << order;
+		}
+		numFree = numFrames;
+	}
+
+	/**
+	 * Allocate a single frame.
+	 *
+	 * @return the frame number, or -1 if no frames are free.
+	 */
+	public int allocate() {
+		int frame = allocateBlock(0);
+		if (frame != -1)
+			markFree(frame, 1, false);
+		return frame;
+	}
+
+	/**
+	 * Allocate <i>count</i> frames, not necessarily contiguous, all at once.
+	 *
+	 * @return the frame numbers, or <tt>null</tt> if fewer than <i>count</i>
+	 * frames are free, in which case nothing is allocated.
+	 */
+	public int[] allocate(int count) {
+		if (count > numFree)
+			return null;
+
+		int[] frames = new int[count];
+		int filled = 0;
+		while (filled < count) {
+			// Take the largest block that does not overshoot, so that bulk
+			// requests eat whole blocks instead of splitting many.
+			int order = Math.min(maxOrder, 31 - Integer.numberOfLeadingZeros(count - filled));
+			while (heads[order] == -1 && order > 0)
+				order--;
+
+			int frame = allocateBlock(order);
+			for (int i = 0; i < (1 << order); i++)
+				frames[filled++] = frame + i;
+			markFree(frame, 1 << order, false);
+		}
+		return frames;
+	}
+
+	/**
+	 * Allocate <i>count</i> physically contiguous frames.
+	 *
+	 * @return the first frame of the run, or -1 if there is no free run that
+	 * long.
+	 */
+	public int allocateRun(int count) {
+		Lib.assertTrue(count > 0);
+
+		int order = 32 - Integer.numberOfLeadingZeros(count - 1);
+		int frame = (order <= maxOrder) ? allocateBlock(order) : -1;
+		if (frame == -1) {
+			if (count <= numFree)
+				numRunFailures++;
+			return -1;
+		}
+
+		markFree(frame, 1 << order, false);
+		// Give back the tail of the block beyond what was asked for.
+		for (int f = frame + count; f < frame + (1 << order); f++)
+			free(f);
+		return frame;
+	}
+
+	/**
+	 * Free a frame, merging it with its buddies where possible.
+	 */
+	public void free(int frame) {
+		Lib.assertTrue(frame >= 0 && frame < numFrames && !isFree(frame));
+
+		markFree(frame, 1, true);
+		numFree++;
+
+		int order = 0;
+		while (order < maxOrder) {
+			int buddy = frame ^ (1 << order);
+			if (buddy + (1 << order) > numFrames || blockOrder[buddy] != order)
+				break;
+			remove(buddy, order);
+			frame = Math.min(frame, buddy);
+			order++;
+			numMerges++;
+		}
+		push(frame, order);
+	}
+
+	/**
+	 * Free <i>count</i> contiguous frames starting at <i>first</i>.
+	 */
+	public void freeRun(int first, int count) {
+		for (int f = first; f < first + count; f++)
+			free(f);
+	}
+
+	/**
+	 * Test whether a frame is free.
+	 */
+	public boolean isFree(int frame) {
+		return (freeMap[frame / 64] & (1L << (frame % 64))) != 0;
+	}
+
+	/** Return the number of free frames. */
+	public int getNumFree() {
+		return numFree;
+	}
+
+	/** Return the number of times a block was split to satisfy a request. */
+	public int getNumSplits() {
+		return numSplits;
+	}
+
+	/** Return the number of times a freed block merged with its buddy. */
+	public int getNumMerges() {
+		return numMerges;
+	}
+
+	/**
+	 * Return the number of contiguous requests that failed even though
+	 * enough frames were free in total.
+	 */
+	public int getNumRunFailures() {
+		return numRunFailures;
+	}
+
+	/**
+	 * Return the length of the longest run of contiguous free frames.
+	 */
+	public int getLargestFreeRun() {
+		int largest = 0, run = 0;
+		for (int i = 0; i < freeMap.length; i++) {
+			long word = freeMap[i];
+			int bits = Math.min(64, numFrames - i * 64);
+			if (bits == 64 && word == -1L) {
+				run += 64;
+				continue;
+			}
+			if (word == 0) {
+				largest = Math.max(largest, run);
+				run = 0;
+				continue;
+			}
+			for (int b = 0; b < bits; b++) {
+				if ((word & (1L << b)) != 0) {
+					run++;
+				}
+				else {
+					largest = Math.max(largest, run);
+					run = 0;
+				}
+			}
+		}
+		return Math.max(largest, run);
+	}
+
+	/**
+	 * Return the external fragmentation of free memory as a percentage: 0
+	 * when all free frames form one run, approaching 100 as they are
+	 * scattered.
+	 */
+	public int getFragmentation() {
+		if (numFree == 0)
+			return 0;
+		return 100 - (100 * getLargestFreeRun()) / numFree;
+	}
+
+	private int allocateBlock(int order) {
+		int k = order;
+		while (k <= maxOrder && heads[k] == -1)
+			k++;
+		if (k > maxOrder)
+			return -1;
+
+		int frame = heads[k];
+		remove(frame, k);
+		while (k > order) {
+			k--;
+			push(frame + (1 << k), k);
+			numSplits++;
+		}
+
+		numFree -= 1 << order;
+		return frame;
+	}
+
+	private void push(int frame, int order) {
+		blockOrder[frame] = (byte) order;
+		prev[frame] = -1;
+		next[frame] = heads[order];
+		if (heads[order] != -1)
+			prev[heads[order]] = frame;
+		heads[order] = frame;
+	}
+
+	private void remove(int frame, int order) {
+		if (prev[frame] != -1)
+			next[prev[frame]] = next[frame];
+		else
+			heads[order] = next[frame];
+		if (next[frame] != -1)
+			prev[next[frame]] = prev[frame];
+		blockOrder[frame] = -1;
+	}
+
+	private void markFree(int first, int count, boolean free) {
+		for (int f = first; f < first + count; f++) {
+			if (free)
+				freeMap[f / 64] |= 1L << (f % 64);
+			else
+				freeMap[f / 64] &= ~(1L << (f % 64));
+		}
+	}
+
+	private int numFrames;
+	private int maxOrder;
+
+	private int[] heads;
+	private int[] next, prev;
+	private byte[] blockOrder;
+	private long[] freeMap;
+
+	private int numFree;
+	private int numSplits = 0, numMerges = 0, numRunFailures = 0;
+}
@@ -0,0 +1,479 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * An asynchronous I/O ring in the style of Linux's io_uring. A user program
+ * places a submission queue and a completion queue in its own memory and
+ * registers them with <tt>io_setup()</tt>. It then fills in submission
+ * entries and calls <tt>io_enter()</tt>, which hands them to a pool of kernel
+ * worker threads and collects finished operations into the completion queue.
+ *
+ * <p>
+ * Workers never touch user memory: data to be written is copied in when an
+ * operation is submitted, and data that was read is copied out when its
+ * completion is posted. Completions are therefore only posted from inside
+ * <tt>io_enter()</tt>, on the process's own thread.
+ *
+ * <p>
+ * Workers never block on a pipe or the console either, since the pool is
+ * shared by every process. An operation on a <tt>Pollable</tt> file that
+ * cannot proceed is parked on the file's poll waiters and handed back to a
+ * worker when the file becomes ready. Each
+ * operation on a descriptor holds a reference to its file until it
+ * completes, so closing the descriptor meanwhile does not close the file.
+ *
+ * <p>
+ * The ring header in user memory is laid out as follows, with each field a
+ * 32-bit word: <tt>sq_head</tt>, <tt>sq_tail</tt>, <tt>cq_head</tt>,
+ * <tt>cq_tail</tt>, <tt>entries</tt>, and pointers to the submission and
+ * completion arrays. The kernel advances <tt>sq_head</tt> and
+ * <tt>cq_tail</tt>; the program advances the other two.
+ */
+public class IORing {
+	/**
+	 * Allocate a new ring for a process.
+	 *
+	 * @param process the process that owns the ring.
+	 * @param ringAddr the address of the ring header in user memory.
+	 * @param entries the number of entries in each queue.
+	 * @param sqAddr the address of the submission queue.
+	 * @param cqAddr the address of the completion queue.
+	 */
+	public IORing(UserProcess process, int ringAddr, int entries, int sqAddr,
+			int cqAddr) {
+		this.process = process;
+		this.ringAddr = ringAddr;
+		this.entries = entries;
+		this.sqAddr = sqAddr;
+		this.cqAddr = cqAddr;
+
+		startWorkers();
+	}
+
+	/**
+	 * Submit up to <i>toSubmit</i> queued operations, then wait until at
+	 * least <i>minComplete</i> completions are waiting in the completion
+	 * queue, or nothing is left in flight. Posts as many completions as fit.
+	 *
+	 * @return the number of operations submitted, or -1 if the ring could
+	 * not be accessed.
+	 */
+	public int enter(int toSubmit, int minComplete) {
+		int sqTail = readWord(sqTailOffset);
+		if (!ringReadable)
+			return -1;
+
+		int submitted = 0;
+		while (submitted < toSubmit && sqHead != sqTail) {
+			byte[] sqe = new byte[sqeSize];
+			int addr = sqAddr + (sqHead % entries) * sqeSize;
+			if (process.readVirtualMemory(addr, sqe) != sqeSize)
+				return -1;
+
+			submit(new Request(this, Lib.bytesToInt(sqe, 0),
+					Lib.bytesToInt(sqe, 4), Lib.bytesToInt(sqe, 8),
+					Lib.bytesToInt(sqe, 12), Lib.bytesToInt(sqe, 16),
+					Lib.bytesToInt(sqe, 20)));
+			sqHead++;
+			submitted++;
+		}
+		writeWord(sqHeadOffset, sqHead);
+
+		int cqHead = readWord(cqHeadOffset);
+		if (!ringReadable)
+			return -1;
+
+		lock.acquire();
+		while (inFlight > 0 && (cqTail - cqHead) + completed.size() < minComplete)
+			completion.sleep();
+		lock.release();
+
+		postCompletions();
+		return submitted;
+	}
+
+	/**
+	 * Detach the ring from its exiting process. Operations still in flight
+	 * run to completion, but their results are discarded, and any file they
+	 * opened is closed.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		dead = true;
+		while (!completed.isEmpty())
+			completed.removeFirst().discard();
+		lock.release();
+
+		// Parked operations may never become ready, and would keep their
+		// pipes open.
+		boolean intStatus = Machine.interrupt().disable();
+		LinkedList<Request> cancelled = new LinkedList<Request>(parked);
+		for (Request request : cancelled)
+			request.parked = false;
+		parked.clear();
+		Machine.interrupt().restore(intStatus);
+
+		for (Request request : cancelled) {
+			request.unregister();
+			request.result = -1;
+			complete(request);
+		}
+	}
+
+	private void submit(Request request) {
+		switch (request.opcode) {
+		case opRead:
+		case opWrite:
+			if (request.length < 0 || request.length > maxTransfer) {
+				request.result = -1;
+				break;
+			}
+
+			request.description = process.holdOpenFile(request.fd);
+			if (request.description == null) {
+				request.result = -1;
+				break;
+			}
+			request.file = request.description.getFile();
+
+			request.data = new byte[request.length];
+			if (request.opcode == opWrite
+					&& process.readVirtualMemory(request.buf, request.data) != request.length) {
+				request.description.release();
+				request.result = -1;
+				break;
+			}
+			enqueue(request);
+			return;
+
+		case opOpen:
+			request.name = process.readVirtualMemoryString(request.buf, 256);
+			if (request.name == null) {
+				request.result = -1;
+				break;
+			}
+
+			// Pipes live in the kernel and open without delay.
+			if (request.name.startsWith("/pipe/")) {
+				request.result = process.openPipe(request.name, request.length != 0);
+				break;
+			}
+			if (request.length != 0)
+				UserKernel.imageCache.touch(request.name);
+			enqueue(request);
+			return;
+
+		case opClose:
+			if (process.getOpenFile(request.fd) == null) {
+				request.result = -1;
+				break;
+			}
+
+			// Only the last descriptor for a file actually closes it.
+			request.file = process.removeOpenFile(request.fd);
+			if (request.file == null) {
+				request.result = 0;
+				break;
+			}
+			enqueue(request);
+			return;
+
+		default:
+			request.result = -1;
+			break;
+		}
+
+		lock.acquire();
+		completed.add(request);
+		lock.release();
+	}
+
+	private void enqueue(Request request) {
+		lock.acquire();
+		inFlight++;
+		lock.release();
+
+		schedule(request);
+	}
+
+	private static void schedule(Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+		queue.add(request);
+		Machine.interrupt().restore(intStatus);
+
+		workAvailable.V();
+	}
+
+	// Runs on a worker thread, after an operation found its file not ready.
+	private void park(Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean cancelled = dead;
+		if (!cancelled) {
+			request.parked = true;
+			parked.add(request);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		if (cancelled) {
+			request.result = -1;
+			complete(request);
+			return;
+		}
+
+		request.register();
+
+		// The file may have become ready before the waiter was registered.
+		if ((((Pollable) request.file).readyEvents() & request.readyMask()) != 0)
+			wake(request);
+	}
+
+	// Called through a parked request's poll waiter, often with the file's
+	// lock held or from an interrupt handler, so it only hands the request
+	// back to the workers.
+	private void wake(Request request) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean wasParked = request.parked;
+		if (wasParked) {
+			request.parked = false;
+			parked.remove(request);
+		}
+		Machine.interrupt().restore(intStatus);
+
+		if (wasParked)
+			schedule(request);
+	}
+
+	private void complete(Request request) {
+		if (request.description != null)
+			request.description.release();
+
+		lock.acquire();
+		inFlight--;
+		if (dead) {
+			request.discard();
+		}
+		else {
+			completed.add(request);
+			completion.wake();
+		}
+		lock.release();
+	}
+
+	private void postCompletions() {
+		int cqHead = readWord(cqHeadOffset);
+		if (!ringReadable)
+			return;
+
+		while (cqTail - cqHead < entries) {
+			lock.acquire();
+			Request request = completed.isEmpty() ? null : completed.removeFirst();
+			lock.release();
+			if (request == null)
+				break;
+
+			int result = request.finish(process);
+			byte[] cqe = new byte[cqeSize];
+			Lib.bytesFromInt(cqe, 0, request.userData);
+			Lib.bytesFromInt(cqe, 4, result);
+			process.writeVirtualMemory(cqAddr + (cqTail % entries) * cqeSize, cqe);
+			cqTail++;
+		}
+
+		writeWord(cqTailOffset, cqTail);
+	}
+
+	private int readWord(int offset) {
+		byte[] word = new byte[4];
+		ringReadable = process.readVirtualMemory(ringAddr + offset, word) == 4;
+		return ringReadable ? Lib.bytesToInt(word, 0) : -1;
+	}
+
+	private void writeWord(int offset, int value) {
+		process.writeVirtualMemory(ringAddr + offset, Lib.bytesFromInt(value));
+	}
+
+	private static void startWorkers() {
+		if (workAvailable != null)
+			return;
+
+		workAvailable = new Semaphore(0);
+
+		int numWorkers = Config.getInteger("UserKernel.ioWorkers", 4);
+		for (int i = 0; i < numWorkers; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					workerLoop();
+				}
+			}).setName("io worker " + i).fork();
+		}
+	}
+
+	private static void workerLoop() {
+		while (true) {
+			workAvailable.P();
+			boolean intStatus = Machine.interrupt().disable();
+			Request request = queue.removeFirst();
+			Machine.interrupt().restore(intStatus);
+
+			request.unregister();
+			if (request.perform())
+				request.ring.complete(request);
+			else
+				request.ring.park(request);
+		}
+	}
+
+	private static class Request {
+		Request(IORing ring, int opcode, int fd, int buf, int length,
+				int offset, int userData) {
+			this.ring = ring;
+			this.opcode = opcode;
+			this.fd = fd;
+			this.buf = buf;
+			this.length = length;
+			this.offset = offset;
+			this.userData = userData;
+		}
+
+		// Runs on a worker thread. Returns false if the operation is on a
+		// pollable file that is not ready, in which case it should be parked.
+		boolean perform() {
+			if (file instanceof Pollable && offset < 0)
+				return performNow((Pollable) file);
+
+			switch (opcode) {
+			case opRead:
+				result = (offset < 0) ? file.read(data, 0, length)
+						: file.read(offset, data, 0, length);
+				break;
+			case opWrite:
+				result = (offset < 0) ? file.write(data, 0, length)
+						: file.write(offset, data, 0, length);
+				break;
+			case opOpen:
+				file = ThreadedKernel.fileSystem.open(name, length != 0);
+				if (file != null)
+					file = UserKernel.imageCache.watch(file);
+				result = (file == null) ? -1 : 0;
+				break;
+			case opClose:
+				file.close();
+				result = 0;
+				break;
+			}
+			return true;
+		}
+
+		// A write completes only once all of its data is written, as a
+		// blocking write() would.
+		private boolean performNow(Pollable file) {
+			if (opcode == opRead) {
+				result = file.readNow(data, 0, length);
+				return result != Pollable.wouldBlock;
+			}
+
+			int written = file.writeNow(data, progress, length - progress);
+			if (written == Pollable.wouldBlock)
+				return false;
+			if (written < 0) {
+				result = -1;
+				return true;
+			}
+
+			progress += written;
+			result = progress;
+			return progress == length;
+		}
+
+		int readyMask() {
+			return Pollable.pollHup
+					| ((opcode == opRead) ? Pollable.pollIn : Pollable.pollOut);
+		}
+
+		void register() {
+			if (waiter == null) {
+				waiter = new PollWaiter() {
+					public void signal() {
+						ring.wake(Request.this);
+					}
+				};
+			}
+			((Pollable) file).addPollWaiter(waiter);
+			registered = true;
+		}
+
+		void unregister() {
+			if (registered) {
+				((Pollable) file).removePollWaiter(waiter);
+				registered = false;
+			}
+		}
+
+		// Runs on the owning process's thread, when the completion is posted.
+		int finish(UserProcess process) {
+			if (result < 0)
+				return result;
+
+			switch (opcode) {
+			case opRead:
+				if (process.writeVirtualMemory(buf, data, 0, result) != result)
+					return -1;
+				break;
+			case opOpen:
+				if (file == null)
+					return result;
+				result = process.addOpenFile(file);
+				if (result < 0)
+					file.close();
+				break;
+			}
+			return result;
+		}
+
+		void discard() {
+			if (opcode == opOpen && file != null)
+				file.close();
+		}
+
+		IORing ring;
+		int opcode, fd, buf, length, offset, userData;
+		int result;
+		byte[] data;
+		String name;
+		OpenFile file;
+		FileDescriptorTable.Description description;
+
+		int progress = 0;
+		PollWaiter waiter;
+		boolean registered = false;
+		boolean parked = false;
+	}
+
+	private static final int opRead = 0, opWrite = 1, opOpen = 2, opClose = 3;
+
+	private static final int sqHeadOffset = 0, sqTailOffset = 4,
+			cqHeadOffset = 8, cqTailOffset = 12;
+
+	private static final int sqeSize = 24, cqeSize = 8;
+
+	private static final int maxTransfer = 1 << 20;
+
+	private UserProcess process;
+	private int ringAddr, entries, sqAddr, cqAddr;
+	private int sqHead = 0, cqTail = 0;
+	private boolean ringReadable = true;
+
+	private Lock lock = new Lock();
+	private Condition2 completion = new Condition2(lock);
+	private LinkedList<Request> completed = new LinkedList<Request>();
+	private LinkedList<Request> parked = new LinkedList<Request>();
+	private int inFlight = 0;
+	private boolean dead = false;
+
+	private static LinkedList<Request> queue = new LinkedList<Request>();
+	private static Semaphore workAvailable = null;
+}
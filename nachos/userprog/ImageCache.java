@@ -0,0 +1,280 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of executable images. The first <tt>exec()</tt> of a
+ * program reads the whole file in one go and parses it; later ones reuse the
+ * parsed headers and section contents without touching the file system.
+ *
+ * <p>
+ * Images are keyed by file name. The kernel opens files through
+ * <tt>watch()</tt>, so that writing to a file, or creating or unlinking it,
+ * drops its image and a program that is rebuilt or overwritten is loaded
+ * afresh. The least recently used images are evicted to keep the cache
+ * within its byte budget.
+ */
+public class ImageCache {
+	/**
+	 * Allocate a new, empty image cache.
+	 *
+	 * @param byteBudget the largest total size of the cached executables.
+	 */
+	public ImageCache(int byteBudget) {
+		this.byteBudget = byteBudget;
+		lock = new Lock();
+	}
+
+	/**
+	 * Return a loader for the named executable, from the cache if possible.
+	 * Each loader is private to its caller and must be closed as usual.
+	 *
+	 * @param name the name of the executable file.
+	 * @return the loader, or <tt>null</tt> if the file cannot be opened or is
+	 * not a valid executable.
+	 */
+	public Coff load(String name) {
+		lock.acquire();
+		Image image = images.get(name);
+		if (image != null) {
+			hits++;
+			lock.release();
+			return new CachedCoff(image);
+		}
+		misses++;
+
+		Loading loading = loads.get(name);
+		if (loading == null) {
+			loading = new Loading();
+			loads.put(name, loading);
+		}
+		loading.readers++;
+		int stamp = loading.stamp;
+		lock.release();
+
+		image = readImage(name);
+
+		lock.acquire();
+		// Only cache the image if the file was not modified while we read it.
+		if (image != null && loading.stamp == stamp
+				&& image.bytes.length <= byteBudget) {
+			Image old = images.put(name, image);
+			if (old != null)
+				cachedBytes -= old.bytes.length;
+			cachedBytes += image.bytes.length;
+			evict();
+		}
+		if (--loading.readers == 0)
+			loads.remove(name);
+		lock.release();
+
+		return (image == null) ? null : new CachedCoff(image);
+	}
+
+	/**
+	 * Return another loader for the same image as <i>coff</i>, which must
+	 * have come from <tt>load()</tt>. Used by <tt>fork()</tt>, whose child
+	 * must run the same image as its parent even if the file has changed.
+	 */
+	public Coff share(Coff coff) {
+		return new CachedCoff(((CachedCoff) coff).image);
+	}
+
+	/**
+	 * Record that the named file may have been modified, so any cached image
+	 * of it is out of date.
+	 */
+	public void touch(String name) {
+		lock.acquire();
+		Loading loading = loads.get(name);
+		if (loading != null)
+			loading.stamp++;
+		Image image = images.remove(name);
+		if (image != null)
+			cachedBytes -= image.bytes.length;
+		lock.release();
+	}
+
+	/**
+	 * Return a file that behaves like <i>file</i>, but touches its name
+	 * whenever it is written, and again when it is closed after a write.
+	 */
+	public OpenFile watch(OpenFile file) {
+		return new WatchedFile(file);
+	}
+
+	/** Return the number of loads satisfied from the cache. */
+	public int getHits() {
+		return hits;
+	}
+
+	/** Return the number of loads that had to read the file. */
+	public int getMisses() {
+		return misses;
+	}
+
+	/** Return the number of images evicted to stay within the budget. */
+	public int getEvictions() {
+		return evictions;
+	}
+
+	private void evict() {
+		Iterator<Image> it = images.values().iterator();
+		while (cachedBytes > byteBudget && it.hasNext()) {
+			Image image = it.next();
+			it.remove();
+			cachedBytes -= image.bytes.length;
+			evictions++;
+			Lib.debug(dbgCache, "evicted " + image.name);
+		}
+	}
+
+	private Image readImage(String name) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null)
+			return null;
+
+		int length = file.length();
+		if (length <= 0 || length > maxImageLength) {
+			file.close();
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		int read = file.read(0, bytes, 0, length);
+		file.close();
+		if (read != length)
+			return null;
+
+		// Parse and validate the image once with the standard loader.
+		try {
+			return new Image(name, bytes, new Coff(new ImageFile(bytes)));
+		}
+		catch (EOFException e) {
+			Lib.debug(dbgCache, "\tcoff load failed for " + name);
+			return null;
+		}
+	}
+
+	/**
+	 * The in-memory copy of an executable. Reads cost a kernel tick, standing
+	 * in for the memory copy, rather than a trip to the file system.
+	 */
+	private static class ImageFile extends ArrayFile {
+		ImageFile(byte[] bytes) {
+			super(bytes);
+		}
+
+		public int read(int position, byte[] buf, int offset, int length) {
+			int amount = super.read(position, buf, offset, length);
+
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().enable();
+			Machine.interrupt().restore(intStatus);
+
+			return amount;
+		}
+	}
+
+	private class WatchedFile extends OpenFileWithPosition {
+		WatchedFile(OpenFile file) {
+			super(file.getFileSystem(), file.getName());
+			this.file = file;
+		}
+
+		public int read(int position, byte[] buf, int offset, int length) {
+			return file.read(position, buf, offset, length);
+		}
+
+		public int write(int position, byte[] buf, int offset, int length) {
+			int amount = file.write(position, buf, offset, length);
+			if (amount > 0) {
+				written = true;
+				touch(getName());
+			}
+			return amount;
+		}
+
+		public int length() {
+			return file.length();
+		}
+
+		public void close() {
+			file.close();
+			if (written)
+				touch(getName());
+		}
+
+		private OpenFile file;
+		private boolean written = false;
+	}
+
+	private static class Image {
+		Image(String name, byte[] bytes, Coff parsed) {
+			this.name = name;
+			this.bytes = bytes;
+			this.parsed = parsed;
+		}
+
+		final String name;
+		final byte[] bytes;
+		final Coff parsed;
+	}
+
+	/**
+	 * The loads of a file that are reading it, and how many times it has
+	 * been touched since the first of them began.
+	 */
+	private static class Loading {
+		int readers = 0;
+		int stamp = 0;
+	}
+
+	/**
+	 * A loader whose sections are those of a shared, parsed image. Closing it
+	 * leaves the image intact for other processes.
+	 */
+	private static class CachedCoff extends Coff {
+		CachedCoff(Image image) {
+			super();
+
+			this.image = image;
+			entryPoint = image.parsed.getEntryPoint();
+			sections = new CoffSection[image.parsed.getNumSections()];
+			for (int s = 0; s < sections.length; s++)
+				sections[s] = image.parsed.getSection(s);
+		}
+
+		public int getEntryPoint() {
+			Lib.assertTrue(sections != null);
+
+			return entryPoint;
+		}
+
+		public void close() {
+			sections = null;
+		}
+
+		final Image image;
+	}
+
+	private static final int maxImageLength = 1 << 22;
+
+	private static final char dbgCache = 'c';
+
+	private int byteBudget;
+	private int cachedBytes = 0;
+
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+	private HashMap<String, Loading> loads = new HashMap<String, Loading>();
+
+	private int hits = 0, misses = 0, evictions = 0;
+
+	private Lock lock;
+}
@@ -0,0 +1,66 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A thread blocked in <tt>poll()</tt>. The waiter is registered with every
+ * <tt>Pollable</tt> it is waiting on, and any of them can wake it. A signal
+ * that arrives before the thread sleeps is remembered, so registering first
+ * and then checking for ready events never loses a wakeup.
+ * 
+ * <p>
+ * <tt>signal()</tt> may be called from an interrupt handler. The waiter's
+ * lock is only ever held with interrupts disabled, so a handler always finds
+ * it free.
+ */
+public class PollWaiter {
+	/**
+	 * Allocate a new, unsignalled waiter.
+	 */
+	public PollWaiter() {
+	}
+
+	/**
+	 * Wake the waiting thread, if it is not already awake.
+	 */
+	public void signal() {
+		boolean intStatus = Machine.interrupt().disable();
+		lock.acquire();
+		signalled = true;
+		wakeup.wake();
+		lock.release();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Block until the waiter is signalled, then clear the signal.
+	 */
+	public void await() {
+		await(0);
+	}
+
+	/**
+	 * Block until the waiter is signalled or <i>timeout</i> ticks have
+	 * passed, then clear the signal. A timeout of 0 waits indefinitely.
+	 */
+	public void await(long timeout) {
+		boolean intStatus = Machine.interrupt().disable();
+		lock.acquire();
+		if (!signalled) {
+			if (timeout > 0)
+				wakeup.sleepFor(timeout);
+			else
+				wakeup.sleep();
+		}
+		signalled = false;
+		lock.release();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private Lock lock = new Lock();
+
+	private Condition2 wakeup = new Condition2(lock);
+
+	private boolean signalled = false;
+}
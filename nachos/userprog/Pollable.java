@@ -0,0 +1,54 @@
+package nachos.userprog;
+
+/**
+ * An open file, or other kernel object, that <tt>poll()</tt> can wait on.
+ * Implementations report which events are ready, and signal every registered
+ * <tt>PollWaiter</tt> whenever one of those events may have become ready.
+ */
+public interface Pollable {
+	/** Data can be read without blocking. */
+	public static final int pollIn = 0x01;
+
+	/** Data can be written without blocking. */
+	public static final int pollOut = 0x04;
+
+	/** The other end has been closed. */
+	public static final int pollHup = 0x10;
+
+	/** The file descriptor is not open. */
+	public static final int pollNval = 0x20;
+
+	/** Returned by a nonblocking transfer that would have had to wait. */
+	public static final int wouldBlock = -2;
+
+	/**
+	 * Return the events that are ready right now.
+	 * 
+	 * @return a mask of <tt>pollIn</tt>, <tt>pollOut</tt> and
+	 * <tt>pollHup</tt>.
+	 */
+	public int readyEvents();
+
+	/**
+	 * Like <tt>read()</tt>, but return <tt>wouldBlock</tt> instead of waiting
+	 * for data.
+	 */
+	public int readNow(byte[] buf, int offset, int length);
+
+	/**
+	 * Like <tt>write()</tt>, but return <tt>wouldBlock</tt> instead of
+	 * waiting for space, and stop short once no more fits.
+	 */
+	public int writeNow(byte[] buf, int offset, int length);
+
+	/**
+	 * Signal <i>waiter</i> whenever the ready events may have changed, until
+	 * it is removed.
+	 */
+	public void addPollWaiter(PollWaiter waiter);
+
+	/**
+	 * Stop signalling <i>waiter</i>.
+	 */
+	public void removePollWaiter(PollWaiter waiter);
+}
@@ -0,0 +1,265 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashSet;
+
+/**
+ * The kernel's table of user processes, indexed by process ID. Records live
+ * in an open-addressing hash table, so looking up, adding and removing a
+ * process all take constant time.
+ *
+ * <p>
+ * When a process exits, its record becomes a zombie that keeps only the exit
+ * status, until the parent collects it with <tt>join()</tt> or exits itself.
+ * The process ID is then recycled, except for process 0.
+ */
+public class ProcessTable {
+	/**
+	 * Allocate a new, empty process table.
+	 */
+	public ProcessTable() {
+		slots = new Record[initialCapacity];
+		freePIDs = new int[initialCapacity];
+		lock = new Lock();
+	}
+
+	/**
+	 * Add a process to the table and assign it a process ID. The process
+	 * has no parent until <tt>setParent()</tt> is called.
+	 *
+	 * @return the new process's ID.
+	 */
+	public int add(UserProcess process) {
+		lock.acquire();
+
+		int pid = numFreePIDs > 0 ? freePIDs[--numFreePIDs] : nextPID++;
+		Record record = new Record(pid, process);
+		insert(record);
+		numLive++;
+
+		lock.release();
+		return pid;
+	}
+
+	/**
+	 * Make <i>parentPID</i> the parent of <i>pid</i>.
+	 */
+	public void setParent(int pid, int parentPID) {
+		lock.acquire();
+
+		Record record = find(pid);
+		Record parent = find(parentPID);
+		Lib.assertTrue(record != null && parent != null && record.parentPID == -1);
+
+		record.parentPID = parentPID;
+		parent.children.add(pid);
+
+		lock.release();
+	}
+
+	/**
+	 * Remove a process that never ran, such as the child of a failed
+	 * <tt>exec()</tt>, and recycle its process ID.
+	 */
+	public void remove(int pid) {
+		lock.acquire();
+
+		Record record = find(pid);
+		Lib.assertTrue(record != null && !record.exited && record.children.isEmpty());
+
+		numLive--;
+		reap(record);
+
+		lock.release();
+	}
+
+	/**
+	 * Return the live process with the given ID.
+	 *
+	 * @return the process, or <tt>null</tt> if there is no such process or
+	 * it has exited.
+	 */
+	public UserProcess get(int pid) {
+		lock.acquire();
+		Record record = find(pid);
+		UserProcess process = (record == null) ? null : record.process;
+		lock.release();
+		return process;
+	}
+
+	/**
+	 * Test whether <i>pid</i> is a child of <i>parentPID</i> that has not yet
+	 * been joined.
+	 */
+	public boolean isChild(int pid, int parentPID) {
+		lock.acquire();
+		Record record = find(pid);
+		boolean child = (record != null && record.parentPID == parentPID);
+		lock.release();
+		return child;
+	}
+
+	/**
+	 * Record that a process has exited, once it has released its memory.
+	 * Wakes up a parent waiting in <tt>join()</tt>. Zombie children of the
+	 * process are discarded, and live children are orphaned so that they are
+	 * discarded as soon as they exit.
+	 *
+	 * @return <tt>true</tt> if no live processes remain.
+	 */
+	public boolean exit(int pid, int status) {
+		lock.acquire();
+
+		Record record = find(pid);
+		Lib.assertTrue(record != null && !record.exited);
+
+		record.process = null;
+		record.exited = true;
+		record.exitStatus = status;
+		numLive--;
+
+		for (int childPID : record.children) {
+			Record child = find(childPID);
+			child.parentPID = -1;
+			if (child.exited)
+				reap(child);
+		}
+		record.children.clear();
+
+		if (record.parentPID == -1)
+			reap(record);
+		else
+			record.exitCondition.wakeAll();
+
+		boolean empty = (numLive == 0);
+		lock.release();
+		return empty;
+	}
+
+	/**
+	 * Wait for a child to exit, discard its record and return its exit
+	 * status. The caller must have checked <tt>isChild()</tt>.
+	 */
+	public int join(int pid) {
+		lock.acquire();
+
+		Record record = find(pid);
+		Lib.assertTrue(record != null && record.parentPID != -1);
+
+		while (!record.exited)
+			record.exitCondition.sleep();
+
+		int status = record.exitStatus;
+		reap(record);
+
+		lock.release();
+		return status;
+	}
+
+	/**
+	 * Return the number of processes that have not yet exited.
+	 */
+	public int numLiveProcesses() {
+		return numLive;
+	}
+
+	private void reap(Record record) {
+		if (record.parentPID != -1) {
+			Record parent = find(record.parentPID);
+			if (parent != null)
+				parent.children.remove(record.pid);
+		}
+
+		delete(record.pid);
+
+		// Process 0 alone may halt the machine, so its ID is never reused.
+		if (record.pid == 0)
+			return;
+
+		if (numFreePIDs == freePIDs.length) {
+			int[] grown = new int[freePIDs.length * 2];
+			System.arraycopy(freePIDs, 0, grown, 0, numFreePIDs);
+			freePIDs = grown;
+		}
+		freePIDs[numFreePIDs++] = record.pid;
+	}
+
+	private int slotFor(int pid) {
+		return (pid * 0x9E3779B9) & (slots.length - 1);
+	}
+
+	private Record find(int pid) {
+		for (int i = slotFor(pid); slots[i] != null; i = (i + 1) & (slots.length - 1)) {
+			if (slots[i].pid == pid)
+				return slots[i];
+		}
+		return null;
+	}
+
+	private void insert(Record record) {
+		if ((size + 1) * 2 > slots.length) {
+			Record[] old = slots;
+			slots = new Record[old.length * 2];
+			size = 0;
+			for (Record r : old) {
+				if (r != null)
+					insert(r);
+			}
+		}
+
+		int i = slotFor(record.pid);
+		while (slots[i] != null)
+			i = (i + 1) & (slots.length - 1);
+		slots[i] = record;
+		size++;
+	}
+
+	private void delete(int pid) {
+		int mask = slots.length - 1;
+		int i = slotFor(pid);
+		while (slots[i].pid != pid)
+			i = (i + 1) & mask;
+
+		// Shift later members of the probe run back into the hole, so that
+		// lookups never need tombstones.
+		int hole = i;
+		for (int j = (hole + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+			int home = slotFor(slots[j].pid);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				slots[hole] = slots[j];
+				hole = j;
+			}
+		}
+		slots[hole] = null;
+		size--;
+	}
+
+	private class Record {
+		Record(int pid, UserProcess process) {
+			this.pid = pid;
+			this.process = process;
+		}
+
+		final int pid;
+		UserProcess process;
+		int parentPID = -1;
+		HashSet<Integer> children = new HashSet<Integer>();
+		boolean exited = false;
+		int exitStatus;
+		Condition2 exitCondition = new Condition2(lock);
+	}
+
+	private static final int initialCapacity = 64;
+
+	private Record[] slots;
+	private int size = 0;
+
+	private int nextPID = 0;
+	private int[] freePIDs;
+	private int numFreePIDs = 0;
+	private int numLive = 0;
+
+	private Lock lock;
+}
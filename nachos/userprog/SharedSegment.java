@@ -0,0 +1,62 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A System V style shared memory segment. A segment is created by the first
+ * <tt>shmget()</tt> with a given key, and every process that attaches it maps
+ * the same physical pages. It is destroyed when its last attachment goes
+ * away.
+ * 
+ * <p>
+ * Under <tt>UserKernel</tt> all pages are allocated when the segment is first
+ * attached, and the segment holds one reference to each of them. Under
+ * <tt>VMKernel</tt> pages are faulted in on demand, and a page that is not
+ * resident lives in the swap file.
+ */
+public class SharedSegment {
+	/**
+	 * Allocate a new, empty shared segment.
+	 * 
+	 * @param key the user-chosen key that names the segment.
+	 * @param id the ID handed to user programs.
+	 * @param numPages the size of the segment in pages.
+	 */
+	public SharedSegment(int key, int id, int numPages) {
+		this.key = key;
+		this.id = id;
+		this.numPages = numPages;
+
+		frames = new int[numPages];
+		swapPages = new int[numPages];
+		dirty = new boolean[numPages];
+		Arrays.fill(frames, -1);
+		Arrays.fill(swapPages, -1);
+	}
+
+	/** The user-chosen key that names this segment. */
+	public final int key;
+
+	/** The ID returned by <tt>shmget()</tt>. */
+	public final int id;
+
+	/** The size of this segment in pages. */
+	public final int numPages;
+
+	/** The physical page holding each page, or -1 if it is not resident. */
+	public int[] frames;
+
+	/** The swap page holding each non-resident page, or -1 if none. */
+	public int[] swapPages;
+
+	/**
+	 * Whether each page was modified by a process that has since detached,
+	 * so that its swap copy is out of date.
+	 */
+	public boolean[] dirty;
+
+	/** The number of processes that currently have this segment attached. */
+	public int attachCount = 0;
+}
@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
@@ -73,6 +75,36 @@ public class SynchConsole {
 	private void receiveInterrupt() {
 		charAvailable = true;
 		readWait.V();
+
+		for (PollWaiter waiter : pollWaiters)
+			waiter.signal();
+	}
+
+	/**
+	 * Test whether a byte can be read without blocking.
+	 * 
+	 * @return <tt>true</tt> if a byte has arrived and not yet been read.
+	 */
+	public boolean isByteAvailable() {
+		return charAvailable;
+	}
+
+	/**
+	 * Signal <i>waiter</i> whenever a byte arrives, until it is removed.
+	 */
+	public void addPollWaiter(PollWaiter waiter) {
+		boolean intStatus = Machine.interrupt().disable();
+		pollWaiters.add(waiter);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stop signalling <i>waiter</i> when bytes arrive.
+	 */
+	public void removePollWaiter(PollWaiter waiter) {
+		boolean intStatus = Machine.interrupt().disable();
+		pollWaiters.remove(waiter);
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -112,7 +144,9 @@ public class SynchConsole {
 
 	private Semaphore writeWait = new Semaphore(0);
 
-	private class File extends OpenFile {
+	private LinkedList<PollWaiter> pollWaiters = new LinkedList<PollWaiter>();
+
+	private class File extends OpenFile implements Pollable {
 		File(boolean canRead, boolean canWrite) {
 			super(null, "SynchConsole");
 
@@ -150,6 +184,35 @@ public class SynchConsole {
 			return length;
 		}
 
+		public int readNow(byte[] buf, int offset, int length) {
+			if (canRead && length > 0 && !isByteAvailable())
+				return wouldBlock;
+			return read(buf, offset, length);
+		}
+
+		public int writeNow(byte[] buf, int offset, int length) {
+			return write(buf, offset, length);
+		}
+
+		public int readyEvents() {
+			int events = 0;
+			if (canRead && isByteAvailable())
+				events |= pollIn;
+			if (canWrite)
+				events |= pollOut;
+			return events;
+		}
+
+		public void addPollWaiter(PollWaiter waiter) {
+			if (canRead)
+				SynchConsole.this.addPollWaiter(waiter);
+		}
+
+		public void removePollWaiter(PollWaiter waiter) {
+			if (canRead)
+				SynchConsole.this.removePollWaiter(waiter);
+		}
+
 		private boolean canRead, canWrite;
 	}
 }
@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -32,11 +34,13 @@ public class UserKernel extends ThreadedKernel {
 
 		// Initialize physical memory management
 		int numPhysPages = Machine.processor().getNumPhysPages();
-		freePages = new boolean[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++) {
-			freePages[i] = true;
-		}
+		frames = new FrameAllocator(numPhysPages);
+		pageReferences = new int[numPhysPages];
 		pageLock = new Lock();
+		shmLock = new Lock();
+
+		processTable = new ProcessTable();
+		imageCache = new ImageCache(Config.getInteger("UserKernel.imageCacheBytes", 512 * 1024));
 	}
 
 	/**
@@ -130,47 +134,188 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Lib.debug(dbgMemory, "frames: " + frames.getNumFree() + " free, "
+				+ frames.getFragmentation() + "% fragmented, "
+				+ frames.getNumSplits() + " splits, "
+				+ frames.getNumMerges() + " merges, "
+				+ frames.getNumRunFailures() + " failed runs");
+
 		super.terminate();
 	}
 
 	/**
-	 * Allocate a physical page.
+	 * Allocate a physical page. The caller holds the only reference to it.
 	 * 
 	 * @return the physical page number, or -1 if no pages are available.
 	 */
-public static int allocatePage() {
-    pageLock.acquire();
-    int page = -1;
-    // Reverse allocation to test non-contiguous page assignment
-    for (int i = freePages.length - 1; i >= 0; i--) {
-        if (freePages[i]) {
-            freePages[i] = false;
-            page = i;
-            break;
-        }
-    }
-    pageLock.release();
-    return page;
-}
+	public static int allocatePage() {
+		pageLock.acquire();
+		int page = frames.allocate();
+		if (page != -1)
+			pageReferences[page] = 1;
+		pageLock.release();
+		return page;
+	}
+
+	/**
+	 * Allocate <i>count</i> physical pages at once. The pages need not be
+	 * contiguous. The caller holds the only reference to each of them.
+	 * 
+	 * @return the physical page numbers, or <tt>null</tt> if fewer than
+	 * <i>count</i> pages are available, in which case none are allocated.
+	 */
+	public static int[] allocatePages(int count) {
+		pageLock.acquire();
+		int[] pages = frames.allocate(count);
+		if (pages != null) {
+			for (int page : pages)
+				pageReferences[page] = 1;
+		}
+		pageLock.release();
+		return pages;
+	}
+
+	/**
+	 * Allocate <i>count</i> physically contiguous pages.
+	 * 
+	 * @return the first physical page number of the run, or -1 if no run of
+	 * that length is available.
+	 */
+	public static int allocateContiguousPages(int count) {
+		pageLock.acquire();
+		int first = frames.allocateRun(count);
+		if (first != -1) {
+			for (int page = first; page < first + count; page++)
+				pageReferences[page] = 1;
+		}
+		pageLock.release();
+		return first;
+	}
+
+	/**
+	 * Return the number of physical pages not currently allocated.
+	 */
+	public static int getNumFreePages() {
+		pageLock.acquire();
+		int free = frames.getNumFree();
+		pageLock.release();
+		return free;
+	}
+
+	/**
+	 * Add a reference to an allocated physical page, so that it stays
+	 * allocated until one more <tt>freePage()</tt> call.
+	 * 
+	 * @param page the physical page number to share.
+	 */
+	public static void sharePage(int page) {
+		pageLock.acquire();
+		Lib.assertTrue(!frames.isFree(page));
+		pageReferences[page]++;
+		pageLock.release();
+	}
 
 	/**
-	 * Free a physical page.
+	 * Drop a reference to a physical page, freeing it once no references
+	 * remain.
 	 * 
 	 * @param page the physical page number to free.
 	 */
 	public static void freePage(int page) {
 		pageLock.acquire();
-		freePages[page] = true;
+		if (--pageReferences[page] <= 0) {
+			pageReferences[page] = 0;
+			frames.free(page);
+		}
 		pageLock.release();
 	}
 
+	/**
+	 * Find the shared memory segment with the given key, creating it with
+	 * <i>numPages</i> pages if it does not exist yet.
+	 * 
+	 * @param key the key chosen by the user programs sharing the segment.
+	 * @param numPages the size of the segment in pages.
+	 * @return the segment, or <tt>null</tt> if an existing segment is
+	 * smaller than <i>numPages</i>.
+	 */
+	public static SharedSegment getSharedSegment(int key, int numPages) {
+		shmLock.acquire();
+		SharedSegment segment = segmentsByKey.get(key);
+		if (segment == null) {
+			segment = new SharedSegment(key, nextSegmentID++, numPages);
+			segmentsByKey.put(key, segment);
+			segmentsByID.put(segment.id, segment);
+		}
+		else if (segment.numPages < numPages) {
+			segment = null;
+		}
+		shmLock.release();
+		return segment;
+	}
+
+	/**
+	 * Record a new attachment of the segment with the given ID.
+	 * 
+	 * @return the segment, or <tt>null</tt> if there is no such segment.
+	 */
+	public static SharedSegment attachSharedSegment(int id) {
+		shmLock.acquire();
+		SharedSegment segment = segmentsByID.get(id);
+		if (segment != null)
+			segment.attachCount++;
+		shmLock.release();
+		return segment;
+	}
+
+	/**
+	 * Record that one attachment of a segment has gone away. The segment is
+	 * destroyed when its last attachment is removed.
+	 * 
+	 * @return <tt>true</tt> if this was the last attachment, in which case
+	 * the caller must release the segment's pages.
+	 */
+	public static boolean detachSharedSegment(SharedSegment segment) {
+		shmLock.acquire();
+		boolean last = --segment.attachCount == 0;
+		if (last) {
+			segmentsByKey.remove(segment.key);
+			segmentsByID.remove(segment.id);
+		}
+		shmLock.release();
+		return last;
+	}
+
+	/**
+	 * Return the lock that serializes attaching and detaching shared
+	 * segments, for callers that must fill in a segment's pages atomically.
+	 */
+	public static Lock getSharedSegmentLock() {
+		return shmLock;
+	}
+
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** Globally accessible reference to the process table. */
+	public static ProcessTable processTable;
+
+	/** Globally accessible reference to the executable image cache. */
+	public static ImageCache imageCache;
+
 	/** Physical memory management */
-	private static boolean[] freePages;
+	private static FrameAllocator frames;
+	private static int[] pageReferences;
 	private static Lock pageLock;
 
+	/** Shared memory segments, by user-chosen key and by segment ID. */
+	private static HashMap<Integer, SharedSegment> segmentsByKey = new HashMap<Integer, SharedSegment>();
+	private static HashMap<Integer, SharedSegment> segmentsByID = new HashMap<Integer, SharedSegment>();
+	private static int nextSegmentID = 0;
+	private static Lock shmLock;
+
+	private static final char dbgMemory = 'k';
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
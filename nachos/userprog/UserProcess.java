@@ -5,34 +5,28 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
-import java.io.EOFException;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 
 public class UserProcess {
-	private OpenFile[] fileTable = new OpenFile[16];
-	private int nextFileDescriptor = 2;
+	private FileDescriptorTable fileTable = new FileDescriptorTable(
+			Config.getInteger("UserProcess.maxFileDescriptors", 256));
 
-	private static int nextPID = 0;
 	private int pid;
-	private UserProcess parent;
-	private static List<UserProcess> processes = new ArrayList<>();
-	private int exitStatus;
-	private boolean hasExited = false;
-	private Lock exitLock = new Lock();
-	private Condition2 exitCondition = new Condition2(exitLock);
-	private List<UserProcess> childProcesses = new ArrayList<>();
 	
-	private static HashMap<String, Pipe> pipes = new HashMap<>();
-	private static Lock pipeLock = new Lock();
+	protected HashMap<Integer, SharedSegment> sharedAttachments = new HashMap<>();
+	
+	private IORing ioRing;
+
+	private static PipeRegistry pipes = new PipeRegistry(16);
 
 	public UserProcess() {
-		fileTable[0] = UserKernel.console.openForReading();
-		fileTable[1] = UserKernel.console.openForWriting();
+		fileTable.add(UserKernel.console.openForReading());
+		fileTable.add(UserKernel.console.openForWriting());
 		
-		pid = nextPID++;
-		processes.add(this);
+		pid = UserKernel.processTable.add(this);
 	}
 
 	public static UserProcess newUserProcess() {
@@ -92,6 +86,8 @@ public class UserProcess {
 			int vpn = vaddr / pageSize;
 			int pageOffset = vaddr % pageSize;
 
+			if (vpn >= 0 && vpn < pageTable.length && pageTable[vpn] == null)
+				growStack(vaddr);
 			if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null || !pageTable[vpn].valid)
 				break;
 
@@ -120,6 +116,8 @@ public class UserProcess {
 			int vpn = vaddr / pageSize;
 			int pageOffset = vaddr % pageSize;
 
+			if (vpn >= 0 && vpn < pageTable.length && pageTable[vpn] == null)
+				growStack(vaddr);
 			if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null || !pageTable[vpn].valid || pageTable[vpn].readOnly)
 				break;
 
@@ -138,20 +136,12 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		coff = UserKernel.imageCache.load(name);
+		if (coff == null) {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
+		executableName = name;
 
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -166,7 +156,7 @@ public class UserProcess {
 
 		int argsSize = 0;
 		for (int i = 0; i < args.length; i++) {
-			argsSize += args[i].length() + 1;
+			argsSize += args[i].getBytes().length + 1;
 		}
 		argsSize += (args.length + 1) * 4;
 
@@ -176,22 +166,15 @@ public class UserProcess {
 			return false;
 		}
 
-		numPages += stackPages;
+		// The stack grows down towards a guard page above the program image,
+		// starting with a single page just below the argument page.
+		stackBase = numPages + 1;
+		numPages += 1 + maxStackPages;
+		stackBottom = numPages - 1;
 		numPages += 1;
 
-		pageTable = new TranslationEntry[numPages];
-		for (int i = 0; i < numPages; i++) {
-			int ppn = UserKernel.allocatePage();
-			if (ppn == -1) {
-				for (int j = 0; j < i; j++) {
-					UserKernel.freePage(pageTable[j].ppn);
-				}
-				coff.close();
-				Lib.debug(dbgProcess, "\tinsufficient physical memory");
-				return false;
-			}
-			pageTable[i] = new TranslationEntry(i, ppn, true, false, false, false);
-		}
+		heapBase = numPages;
+		heapBreak = heapBase * pageSize;
 
 		if (!loadSections()) {
 			unloadSections();
@@ -200,23 +183,24 @@ public class UserProcess {
 			return false;
 		}
 
-		int entryOffset = (numPages - 1) * pageSize;
-		int stringOffset = entryOffset + args.length * 4;
+		// Lay out the argv array and its strings, then copy them into the
+		// argument page at once.
+		int argvAddr = (numPages - 1) * pageSize;
+		byte[] argData = new byte[argsSize];
+		int stringOffset = args.length * 4;
 
 		for (int i = 0; i < args.length; i++) {
-			byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-			Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
-			entryOffset += 4;
-			Lib.assertTrue(writeVirtualMemory(stringOffset, args[i].getBytes()) == args[i].length());
-			stringOffset += args[i].length();
-			Lib.assertTrue(writeVirtualMemory(stringOffset, new byte[] { 0 }) == 1);
-			stringOffset += 1;
+			byte[] argBytes = args[i].getBytes();
+			Lib.bytesFromInt(argData, i * 4, argvAddr + stringOffset);
+			System.arraycopy(argBytes, 0, argData, stringOffset, argBytes.length);
+			stringOffset += argBytes.length + 1;
 		}
+		Lib.assertTrue(writeVirtualMemory(argvAddr, argData, 0, stringOffset) == stringOffset);
 
 		initialPC = coff.getEntryPoint();
 		initialSP = numPages * pageSize;
 		argc = args.length;
-		argv = (numPages - 1) * pageSize;
+		argv = argvAddr;
 
 		return true;
 	}
@@ -230,6 +214,20 @@ public class UserProcess {
 	}
 
 	protected boolean loadSections() {
+		pageTable = new TranslationEntry[numPages];
+		int[] frames = UserKernel.allocatePages(numPages - (stackBottom - stackBase + 1));
+		if (frames == null) {
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
+		int next = 0;
+		for (int i = 0; i < numPages; i++) {
+			if (i >= stackBase - 1 && i < stackBottom)
+				continue;
+			pageTable[i] = new TranslationEntry(i, frames[next++], true, false, false, false);
+		}
+
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			boolean isReadOnly = section.isReadOnly();
@@ -269,22 +267,18 @@ public class UserProcess {
 		return 0;
 	}
 
-	private int handleExit(int status) {
+	protected int handleExit(int status) {
 		Machine.autoGrader().finishingCurrentProcess(status);
 
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
 		
-		exitLock.acquire();
-		exitStatus = status;
-		hasExited = true;
-		exitCondition.wakeAll();
-		exitLock.release();
+		if (ioRing != null)
+			ioRing.shutdown();
 		
-		for (int i = 0; i < fileTable.length; i++) {
-			if (fileTable[i] != null) {
-				fileTable[i].close();
-				fileTable[i] = null;
-			}
+		fileTable.closeAll();
+		
+		for (Integer firstVPN : new ArrayList<>(sharedAttachments.keySet())) {
+			handleShmdt(firstVPN * pageSize);
 		}
 		
 		unloadSections();
@@ -294,9 +288,7 @@ public class UserProcess {
 			coff = null;
 		}
 		
-		processes.remove(this);
-		
-		if (processes.isEmpty())
+		if (UserKernel.processTable.exit(pid, status))
 			Kernel.kernel.terminate();
 		
 		thread.finish();
@@ -310,48 +302,43 @@ public class UserProcess {
 			return -1;
 
 		if (fileName.startsWith("/pipe/")) {
-			return handlePipeCreate(fileName);
+			return handlePipeCreate(fileName, defaultPipeCapacity);
 		}
 
+		UserKernel.imageCache.touch(fileName);
 		OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
 		if (file == null)
 			return -1;
+		file = UserKernel.imageCache.watch(file);
 
-		for (int fd = 2; fd < fileTable.length; fd++) {
-			if (fileTable[fd] == null) {
-				fileTable[fd] = file;
-				return fd;
-			}
-		}
+		int fd = fileTable.add(file);
+		if (fd == -1)
+			file.close();
+		return fd;
+	}
 
-		file.close();
-		return -1;
+	private int handleMkpipe(int nameAddr, int capacity) {
+		String pipeName = readVirtualMemoryString(nameAddr, 256);
+		if (pipeName == null || !pipeName.startsWith("/pipe/"))
+			return -1;
+
+		if (capacity <= 0 || capacity > maxPipeCapacity)
+			return -1;
+
+		return handlePipeCreate(pipeName, capacity);
 	}
 
-	private int handlePipeCreate(String pipeName) {
-		pipeLock.acquire();
-		
-		if (pipes.containsKey(pipeName)) {
-			pipeLock.release();
+	private int handlePipeCreate(String pipeName, int capacity) {
+		Pipe pipe = pipes.create(pipeName, capacity);
+		if (pipe == null)
 			return -1;
-		}
-		
-		Pipe pipe = new Pipe();
-		pipes.put(pipeName, pipe);
 		
-		PipeFile pipeFile = new PipeFile(pipe, true);
+		PipeFile pipeFile = new PipeFile(pipes, pipe, true);
 		
-		for (int fd = 2; fd < fileTable.length; fd++) {
-			if (fileTable[fd] == null) {
-				fileTable[fd] = pipeFile;
-				pipeLock.release();
-				return fd;
-			}
-		}
-		
-		pipes.remove(pipeName);
-		pipeLock.release();
-		return -1;
+		int fd = fileTable.add(pipeFile);
+		if (fd == -1)
+			pipeFile.close();
+		return fd;
 	}
 
 	private int handleOpen(int nameAddr) {
@@ -366,50 +353,37 @@ public class UserProcess {
 		OpenFile file = ThreadedKernel.fileSystem.open(fileName, false);
 		if (file == null)
 			return -1;
+		file = UserKernel.imageCache.watch(file);
 
-		for (int fd = 2; fd < fileTable.length; fd++) {
-			if (fileTable[fd] == null) {
-				fileTable[fd] = file;
-				return fd;
-			}
-		}
-
-		file.close();
-		return -1;
+		int fd = fileTable.add(file);
+		if (fd == -1)
+			file.close();
+		return fd;
 	}
 
 	private int handlePipeOpen(String pipeName) {
-		pipeLock.acquire();
-		
-		Pipe pipe = pipes.get(pipeName);
-		if (pipe == null) {
-			pipeLock.release();
+		Pipe pipe = pipes.open(pipeName);
+		if (pipe == null)
 			return -1;
-		}
 		
-		PipeFile pipeFile = new PipeFile(pipe, false);
+		PipeFile pipeFile = new PipeFile(pipes, pipe, false);
 		
-		for (int fd = 2; fd < fileTable.length; fd++) {
-			if (fileTable[fd] == null) {
-				fileTable[fd] = pipeFile;
-				pipeLock.release();
-				return fd;
-			}
-		}
-		
-		pipeLock.release();
-		return -1;
+		int fd = fileTable.add(pipeFile);
+		if (fd == -1)
+			pipeFile.close();
+		return fd;
 	}
 
 	private int handleRead(int fd, int bufferAddr, int size) {
-		if (fd < 0 || fd >= fileTable.length || fileTable[fd] == null)
+		OpenFile file = fileTable.get(fd);
+		if (file == null)
 			return -1;
 
 		if (size < 0)
 			return -1;
 
 		byte[] buffer = new byte[size];
-		int bytesRead = fileTable[fd].read(buffer, 0, size);
+		int bytesRead = file.read(buffer, 0, size);
 		if (bytesRead < 0)
 			return -1;
 
@@ -421,7 +395,8 @@ public class UserProcess {
 	}
 
 	private int handleWrite(int fd, int bufferAddr, int size) {
-		if (fd < 0 || fd >= fileTable.length || fileTable[fd] == null)
+		OpenFile file = fileTable.get(fd);
+		if (file == null)
 			return -1;
 
 		if (size < 0)
@@ -432,92 +407,441 @@ public class UserProcess {
 		if (bytesRead != size)
 			return -1;
 
-		int bytesWritten = fileTable[fd].write(buffer, 0, size);
+		int bytesWritten = file.write(buffer, 0, size);
 		return bytesWritten;
 	}
 
-	private int handleClose(int fd) {
-		if (fd < 0 || fd >= fileTable.length || fileTable[fd] == null)
+	private int handleReadv(int fd, int iovAddr, int iovcnt) {
+		OpenFile file = fileTable.get(fd);
+		if (file == null)
+			return -1;
+
+		int[][] iov = readIovecs(iovAddr, iovcnt);
+		if (iov == null)
+			return -1;
+
+		byte[] buffer = new byte[iovecTotal(iov)];
+		int bytesRead = file.read(buffer, 0, buffer.length);
+		if (bytesRead < 0)
+			return -1;
+
+		int copied = 0;
+		for (int i = 0; i < iovcnt && copied < bytesRead; i++) {
+			int amount = Math.min(iov[i][1], bytesRead - copied);
+			if (writeVirtualMemory(iov[i][0], buffer, copied, amount) != amount)
+				return -1;
+			copied += amount;
+		}
+
+		return bytesRead;
+	}
+
+	private int handleWritev(int fd, int iovAddr, int iovcnt) {
+		OpenFile file = fileTable.get(fd);
+		if (file == null)
+			return -1;
+
+		int[][] iov = readIovecs(iovAddr, iovcnt);
+		if (iov == null)
+			return -1;
+
+		byte[] buffer = new byte[iovecTotal(iov)];
+		int gathered = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			if (readVirtualMemory(iov[i][0], buffer, gathered, iov[i][1]) != iov[i][1])
+				return -1;
+			gathered += iov[i][1];
+		}
+
+		return file.write(buffer, 0, buffer.length);
+	}
+
+	private int[][] readIovecs(int iovAddr, int iovcnt) {
+		if (iovcnt < 0 || iovcnt > maxIovecs)
+			return null;
+
+		byte[] raw = new byte[iovcnt * iovecSize];
+		if (readVirtualMemory(iovAddr, raw) != raw.length)
+			return null;
+
+		int[][] iov = new int[iovcnt][2];
+		long total = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			iov[i][0] = Lib.bytesToInt(raw, i * iovecSize);
+			iov[i][1] = Lib.bytesToInt(raw, i * iovecSize + 4);
+			if (iov[i][1] < 0)
+				return null;
+			total += iov[i][1];
+		}
+
+		if (total > maxIovecBytes)
+			return null;
+
+		return iov;
+	}
+
+	private static int iovecTotal(int[][] iov) {
+		int total = 0;
+		for (int i = 0; i < iov.length; i++)
+			total += iov[i][1];
+		return total;
+	}
+
+	private int handleShmget(int key, int size) {
+		if (size <= 0)
 			return -1;
 
-		fileTable[fd].close();
-		fileTable[fd] = null;
+		SharedSegment segment = UserKernel.getSharedSegment(key, Lib.divRoundUp(size, pageSize));
+		return (segment == null) ? -1 : segment.id;
+	}
+
+	protected int handleShmat(int id) {
+		SharedSegment segment = UserKernel.attachSharedSegment(id);
+		if (segment == null)
+			return -1;
+
+		Lock shmLock = UserKernel.getSharedSegmentLock();
+		shmLock.acquire();
+		for (int i = 0; i < segment.numPages; i++) {
+			if (segment.frames[i] == -1) {
+				int ppn = UserKernel.allocatePage();
+				if (ppn == -1) {
+					shmLock.release();
+					releaseSegment(segment);
+					return -1;
+				}
+				byte[] memory = Machine.processor().getMemory();
+				Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+				segment.frames[i] = ppn;
+			}
+		}
+		shmLock.release();
+
+		int firstVPN = Math.max(pageTable.length, heapBase + maxHeapPages);
+		for (int vpn = heapBase + maxHeapPages; vpn < pageTable.length && firstVPN == pageTable.length; vpn++) {
+			int run = 0;
+			while (vpn + run < pageTable.length && pageTable[vpn + run] == null && run < segment.numPages)
+				run++;
+			if (run == segment.numPages)
+				firstVPN = vpn;
+		}
+
+		growPageTable(firstVPN + segment.numPages);
+
+		for (int i = 0; i < segment.numPages; i++) {
+			UserKernel.sharePage(segment.frames[i]);
+			pageTable[firstVPN + i] = new TranslationEntry(firstVPN + i, segment.frames[i], true, false, false, false);
+		}
+
+		sharedAttachments.put(firstVPN, segment);
+		return firstVPN * pageSize;
+	}
+
+	protected int handleShmdt(int vaddr) {
+		if (vaddr % pageSize != 0)
+			return -1;
+
+		int firstVPN = vaddr / pageSize;
+		SharedSegment segment = sharedAttachments.remove(firstVPN);
+		if (segment == null)
+			return -1;
+
+		for (int i = 0; i < segment.numPages; i++) {
+			UserKernel.freePage(pageTable[firstVPN + i].ppn);
+			pageTable[firstVPN + i] = null;
+		}
+
+		releaseSegment(segment);
 		return 0;
 	}
 
+	/**
+	 * Move the program break by <i>increment</i> bytes. The heap lies just
+	 * above the argument page and may grow to <tt>maxHeapPages</tt> pages;
+	 * shared segments and file mappings are placed above that.
+	 */
+	private int handleSbrk(int increment) {
+		int oldBreak = heapBreak;
+		long newBreak = (long) oldBreak + increment;
+		if (newBreak < heapBase * pageSize || newBreak > (heapBase + maxHeapPages) * pageSize)
+			return -1;
+
+		int oldTop = Lib.divRoundUp(oldBreak, pageSize);
+		int newTop = Lib.divRoundUp((int) newBreak, pageSize);
+		if (newTop > oldTop) {
+			if (!mapZeroPages(oldTop, newTop))
+				return -1;
+		}
+		else if (newTop < oldTop) {
+			unmapPages(newTop, oldTop);
+		}
+
+		heapBreak = (int) newBreak;
+		return oldBreak;
+	}
+
+	/**
+	 * Extend the stack down to the page containing <i>vaddr</i>, if that
+	 * address lies in the stack region below the current bottom of the
+	 * stack and not below the stack pointer. The page just below the region
+	 * is never mapped, so running off the end of the stack faults.
+	 *
+	 * @return <tt>true</tt> if the stack was extended.
+	 */
+	protected boolean growStack(int vaddr) {
+		int vpn = vaddr / pageSize;
+		if (vaddr < 0 || vpn < stackBase || vpn >= stackBottom)
+			return false;
+		if (vaddr < Machine.processor().readRegister(Processor.regSP))
+			return false;
+
+		if (!mapZeroPages(vpn, stackBottom))
+			return false;
+
+		Lib.debug(dbgProcess, "	stack grown to " + (stackBottom - vpn) + " more pages");
+		stackBottom = vpn;
+		return true;
+	}
+
+	/**
+	 * Back the pages from <i>firstVPN</i> up to <i>endVPN</i> with
+	 * zero-filled memory.
+	 *
+	 * @return <tt>true</tt> on success, or <tt>false</tt> if there is not
+	 * enough physical memory, in which case no pages were added.
+	 */
+	protected boolean mapZeroPages(int firstVPN, int endVPN) {
+		int[] frames = UserKernel.allocatePages(endVPN - firstVPN);
+		if (frames == null)
+			return false;
+
+		growPageTable(endVPN);
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+			int ppn = frames[vpn - firstVPN];
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
+		}
+		return true;
+	}
+
+	/**
+	 * Release the pages from <i>firstVPN</i> up to <i>endVPN</i>.
+	 */
+	protected void unmapPages(int firstVPN, int endVPN) {
+		for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+			UserKernel.freePage(pageTable[vpn].ppn);
+			pageTable[vpn] = null;
+		}
+	}
+
+	/**
+	 * Make the page table at least <i>length</i> entries long.
+	 */
+	protected void growPageTable(int length) {
+		if (length > pageTable.length) {
+			pageTable = Arrays.copyOf(pageTable, length);
+			numPages = pageTable.length;
+			Machine.processor().setPageTable(pageTable);
+		}
+	}
+
+	private void releaseSegment(SharedSegment segment) {
+		if (UserKernel.detachSharedSegment(segment)) {
+			for (int i = 0; i < segment.numPages; i++) {
+				if (segment.frames[i] != -1)
+					UserKernel.freePage(segment.frames[i]);
+				segment.frames[i] = -1;
+			}
+		}
+	}
+
+	private int handleClose(int fd) {
+		return fileTable.close(fd) ? 0 : -1;
+	}
+
+	private int handleDup(int fd) {
+		return fileTable.dup(fd);
+	}
+
+	private int handleDup2(int fd, int newFD) {
+		return fileTable.dup2(fd, newFD);
+	}
+
 	private int handleUnlink(int nameAddr) {
 		String fileName = readVirtualMemoryString(nameAddr, 256);
 		if (fileName == null)
 			return -1;
 
 		if (fileName.startsWith("/pipe/")) {
-			pipeLock.acquire();
-			pipes.remove(fileName);
-			pipeLock.release();
-			return 0;
+			return pipes.unlink(fileName) ? 0 : -1;
 		}
 
+		UserKernel.imageCache.touch(fileName);
 		return ThreadedKernel.fileSystem.remove(fileName) ? 0 : -1;
 	}
 
+	private int handleSplice(int fdIn, int fdOut, int length) {
+		OpenFile in = getOpenFile(fdIn);
+		OpenFile out = getOpenFile(fdOut);
+		if (in == null || out == null || length < 0)
+			return -1;
+
+		boolean fromPipe = in instanceof PipeFile && !((PipeFile) in).isWriter();
+		boolean toPipe = out instanceof PipeFile && ((PipeFile) out).isWriter();
+
+		if (fromPipe && !(out instanceof PipeFile))
+			return ((PipeFile) in).getPipe().drainTo(out, length);
+		if (toPipe && !(in instanceof PipeFile))
+			return ((PipeFile) out).getPipe().fillFrom(in, length);
+
+		return -1;
+	}
+
+	private int handleIoSetup(int ringAddr, int entries) {
+		if (ioRing != null || entries <= 0 || entries > maxIoEntries)
+			return -1;
+
+		byte[] header = new byte[ioRingHeaderSize];
+		if (readVirtualMemory(ringAddr, header) != ioRingHeaderSize)
+			return -1;
+
+		int sqAddr = Lib.bytesToInt(header, 20);
+		int cqAddr = Lib.bytesToInt(header, 24);
+
+		Arrays.fill(header, 0, 20, (byte) 0);
+		Lib.bytesFromInt(header, 16, entries);
+		if (writeVirtualMemory(ringAddr, header) != ioRingHeaderSize)
+			return -1;
+
+		ioRing = new IORing(this, ringAddr, entries, sqAddr, cqAddr);
+		return 0;
+	}
+
+	private int handleIoEnter(int toSubmit, int minComplete) {
+		if (ioRing == null || toSubmit < 0)
+			return -1;
+
+		return ioRing.enter(toSubmit, minComplete);
+	}
+
+	private int handlePoll(int fdsAddr, int nfds, int timeout) {
+		if (nfds < 0 || nfds > maxPollFds)
+			return -1;
+
+		byte[] fds = new byte[nfds * pollfdSize];
+		if (readVirtualMemory(fdsAddr, fds) != fds.length)
+			return -1;
+
+		OpenFile[] files = new OpenFile[nfds];
+		int[] events = new int[nfds];
+		for (int i = 0; i < nfds; i++) {
+			files[i] = getOpenFile(Lib.bytesToInt(fds, i * pollfdSize));
+			events[i] = Lib.bytesToInt(fds, i * pollfdSize + 4);
+		}
+
+		PollWaiter waiter = new PollWaiter();
+		for (int i = 0; i < nfds; i++) {
+			if (files[i] instanceof Pollable)
+				((Pollable) files[i]).addPollWaiter(waiter);
+		}
+
+		long deadline = Machine.timer().getTime() + timeout;
+
+		int ready;
+		while (true) {
+			ready = 0;
+			for (int i = 0; i < nfds; i++) {
+				int revents;
+				if (files[i] == null)
+					revents = Pollable.pollNval;
+				else if (files[i] instanceof Pollable)
+					revents = ((Pollable) files[i]).readyEvents()
+							& (events[i] | Pollable.pollHup);
+				else
+					revents = events[i] & (Pollable.pollIn | Pollable.pollOut);
+
+				Lib.bytesFromInt(fds, i * pollfdSize + 8, revents);
+				if (revents != 0)
+					ready++;
+			}
+
+			if (ready > 0 || timeout == 0)
+				break;
+			if (timeout < 0) {
+				waiter.await();
+				continue;
+			}
+
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+			waiter.await(remaining);
+		}
+
+		for (int i = 0; i < nfds; i++) {
+			if (files[i] instanceof Pollable)
+				((Pollable) files[i]).removePollWaiter(waiter);
+		}
+
+		if (writeVirtualMemory(fdsAddr, fds) != fds.length)
+			return -1;
+		return ready;
+	}
+
 	private int handleExec(int nameAddr, int argc, int argvAddr) {
 		String name = readVirtualMemoryString(nameAddr, 256);
 		if (name == null || !name.endsWith(".coff"))
 			return -1;
 		
+		if (argc < 0)
+			return -1;
+
+		// Copy the whole argv array in at once, rather than a pointer at a
+		// time.
+		byte[] pointers = new byte[argc * 4];
+		if (readVirtualMemory(argvAddr, pointers) != pointers.length)
+			return -1;
+
 		String[] args = new String[argc];
 		for (int i = 0; i < argc; i++) {
-			byte[] ptrBytes = new byte[4];
-			if (readVirtualMemory(argvAddr + i * 4, ptrBytes) != 4)
-				return -1;
-			int argAddr = Lib.bytesToInt(ptrBytes, 0);
-			
+			int argAddr = Lib.bytesToInt(pointers, i * 4);
+
 			args[i] = readVirtualMemoryString(argAddr, 256);
 			if (args[i] == null)
 				return -1;
 		}
 		
 		UserProcess child = newUserProcess();
-		child.setParent(this);
-
-		this.childProcesses.add(child);
+		addChild(child);
 		
-		if (!child.execute(name, args))
+		// The child shares our standard input and output, so a shell can
+		// redirect them with dup2() before exec().
+		inheritStandardFiles(child);
+		
+		if (!child.execute(name, args)) {
+			child.fileTable.closeAll();
+			UserKernel.processTable.remove(child.getPID());
 			return -1;
+		}
 
 		return child.getPID();
 	}
 
 	private int handleJoin(int pid, int statusAddr) {
-		UserProcess child = null;
-		for (UserProcess p : this.childProcesses) {
-			if (p.getPID() == pid) {
-				child = p;
-				break;
-			}
-		}
-
-		if (child == null) {
+		if (!UserKernel.processTable.isChild(pid, this.pid)) {
 			return -1;
 		}
 
-		child.exitLock.acquire();
-		while (!child.hasExited) {
-			child.exitCondition.sleep();
-		}
-		
-		int childExitStatus = child.exitStatus;
-		child.exitLock.release();
+		int childExitStatus = UserKernel.processTable.join(pid);
 
 		if (statusAddr != 0) {
 			byte[] statusBytes = Lib.bytesFromInt(childExitStatus);
 			if (writeVirtualMemory(statusAddr, statusBytes) != 4) {
-				childProcesses.remove(child);
 				return 0;
 			}
 		}
-
-		childProcesses.remove(child);
 		
 		if (childExitStatus == -1) {
 			return 0;
@@ -529,7 +853,23 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+			syscallShmget = 17, syscallShmat = 18, syscallShmdt = 19,
+			syscallMkpipe = 20, syscallSplice = 21, syscallIoSetup = 22,
+			syscallIoEnter = 23, syscallPoll = 24, syscallDup = 25,
+			syscallDup2 = 26, syscallSbrk = 27;
+
+	private static final int iovecSize = 8, maxIovecs = 64,
+			maxIovecBytes = 1 << 20;
+
+	private static final int defaultPipeCapacity = 4096,
+			maxPipeCapacity = 1 << 20;
+
+	private static final int ioRingHeaderSize = 28, maxIoEntries = 256;
+
+	private static final int pollfdSize = 12, maxPollFds = 1024;
+
+	private static final int fdStandardInput = 0, fdStandardOutput = 1;
 
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 		switch (syscall) {
@@ -553,6 +893,32 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
+		case syscallShmget:
+			return handleShmget(a0, a1);
+		case syscallShmat:
+			return handleShmat(a0);
+		case syscallShmdt:
+			return handleShmdt(a0);
+		case syscallMkpipe:
+			return handleMkpipe(a0, a1);
+		case syscallSplice:
+			return handleSplice(a0, a1, a2);
+		case syscallIoSetup:
+			return handleIoSetup(a0, a1);
+		case syscallIoEnter:
+			return handleIoEnter(a0, a1);
+		case syscallPoll:
+			return handlePoll(a0, a1, a2);
+		case syscallDup:
+			return handleDup(a0);
+		case syscallDup2:
+			return handleDup2(a0, a1);
+		case syscallSbrk:
+			return handleSbrk(a0);
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -595,6 +961,8 @@ public class UserProcess {
 			break;
 
 		case Processor.exceptionPageFault:
+			if (growStack(processor.readRegister(Processor.regBadVAddr)))
+				break;
 			Lib.debug(dbgProcess, "Page fault exception");
 			handleExit(-1);
 			break;
@@ -612,9 +980,13 @@ public class UserProcess {
 	}
 
 	protected Coff coff;
+	protected String executableName;
 	protected TranslationEntry[] pageTable;
 	protected int numPages;
-	protected final int stackPages = 8;
+	protected int stackBase, stackBottom;
+	protected int heapBase, heapBreak;
+	protected static final int maxStackPages = Config.getInteger("UserProcess.maxStackPages", 32);
+	protected static final int maxHeapPages = Config.getInteger("UserProcess.maxHeapPages", 256);
 	protected UThread thread;
 	private int initialPC, initialSP;
 	private int argc, argv;
@@ -622,121 +994,455 @@ public class UserProcess {
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 
+	protected OpenFile getOpenFile(int fd) {
+		return fileTable.get(fd);
+	}
+
+	int addOpenFile(OpenFile file) {
+		return fileTable.add(file);
+	}
+
+	OpenFile removeOpenFile(int fd) {
+		return fileTable.remove(fd);
+	}
+
+	FileDescriptorTable.Description holdOpenFile(int fd) {
+		return fileTable.hold(fd);
+	}
+
+	int openPipe(String pipeName, boolean create) {
+		return create ? handlePipeCreate(pipeName, defaultPipeCapacity)
+				: handlePipeOpen(pipeName);
+	}
+
 	public int getPID() {
 		return pid;
 	}
 
-	public void setParent(UserProcess parent) {
-		this.parent = parent;
+	protected void addChild(UserProcess child) {
+		UserKernel.processTable.setParent(child.getPID(), pid);
+	}
+
+	/**
+	 * Make the standard input and output of <i>child</i> refer to the same
+	 * files as ours, in place of the console.
+	 */
+	protected void inheritStandardFiles(UserProcess child) {
+		child.fileTable.copyFrom(fileTable, fdStandardInput, fdStandardInput);
+		child.fileTable.copyFrom(fileTable, fdStandardOutput, fdStandardOutput);
 	}
+}
 
-	public UserProcess getParent() {
-		return parent;
+class PipeRegistry {
+	private int numStripes;
+	private Lock[] locks;
+	private ArrayList<HashMap<String, Pipe>> stripes;
+	
+	public PipeRegistry(int numStripes) {
+		this.numStripes = numStripes;
+		locks = new Lock[numStripes];
+		stripes = new ArrayList<HashMap<String, Pipe>>(numStripes);
+		for (int i = 0; i < numStripes; i++) {
+			locks[i] = new Lock();
+			stripes.add(new HashMap<String, Pipe>());
+		}
+	}
+	
+	public Pipe create(String name, int capacity) {
+		int stripe = stripeFor(name);
+		locks[stripe].acquire();
+		
+		Pipe pipe = null;
+		if (!stripes.get(stripe).containsKey(name)) {
+			pipe = new Pipe(name, capacity);
+			pipe.openWriter();
+			stripes.get(stripe).put(name, pipe);
+		}
+		
+		locks[stripe].release();
+		return pipe;
+	}
+	
+	public Pipe open(String name) {
+		int stripe = stripeFor(name);
+		locks[stripe].acquire();
+		
+		Pipe pipe = stripes.get(stripe).get(name);
+		if (pipe != null)
+			pipe.openReader();
+		
+		locks[stripe].release();
+		return pipe;
+	}
+	
+	public boolean unlink(String name) {
+		int stripe = stripeFor(name);
+		locks[stripe].acquire();
+		
+		Pipe pipe = stripes.get(stripe).remove(name);
+		if (pipe != null) {
+			pipe.unlink();
+			if (pipe.isUnused())
+				pipe.free();
+		}
+		
+		locks[stripe].release();
+		return pipe != null;
+	}
+	
+	// Called after an end of the pipe is closed. Holding the stripe lock
+	// keeps a concurrent open() from reviving the pipe while it is freed.
+	public void release(Pipe pipe) {
+		int stripe = stripeFor(pipe.getName());
+		locks[stripe].acquire();
+		
+		if (pipe.isUnused()) {
+			if (pipe.isLinked())
+				stripes.get(stripe).remove(pipe.getName());
+			pipe.free();
+		}
+		
+		locks[stripe].release();
+	}
+	
+	private int stripeFor(String name) {
+		return (name.hashCode() & 0x7FFFFFFF) % numStripes;
 	}
 }
 
 class Pipe {
-	private byte[] buffer = new byte[4096];
+	private String name;
+	private byte[] buffer;
+	private int capacity;
 	private int readPos = 0;
 	private int writePos = 0;
 	private int count = 0;
+	private int lowWater;
+	private int highWater;
+	private int readersWaiting = 0;
+	private int writersWaiting = 0;
 	private Lock lock = new Lock();
 	private Condition2 notEmpty = new Condition2(lock);
 	private Condition2 notFull = new Condition2(lock);
+	private int readers = 0;
+	private int writers = 0;
 	private boolean writerClosed = false;
 	private boolean readerClosed = false;
+	private boolean linked = true;
+	private boolean freed = false;
+	private LinkedList<PollWaiter> pollWaiters = new LinkedList<PollWaiter>();
+	
+	private long bytesWritten = 0;
+	private long bytesRead = 0;
+	private int readerBlocks = 0;
+	private int writerBlocks = 0;
 	
-	public int read(byte[] data, int offset, int length) {
+	public Pipe(String name, int capacity) {
+		this.name = name;
+		this.capacity = capacity;
+		buffer = new byte[capacity];
+		lowWater = capacity / 4;
+		highWater = capacity - capacity / 4;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int readyEvents(boolean isWriter) {
 		lock.acquire();
 		
-		while (count == 0 && !writerClosed) {
-			notEmpty.sleep();
+		int events = 0;
+		if (freed) {
+			events = Pollable.pollHup;
+		} else if (isWriter) {
+			if (readerClosed)
+				events |= Pollable.pollOut | Pollable.pollHup;
+			else if (count < buffer.length)
+				events |= Pollable.pollOut;
+		} else {
+			if (count > 0)
+				events |= Pollable.pollIn;
+			if (writerClosed)
+				events |= Pollable.pollIn | Pollable.pollHup;
 		}
 		
-		if (count == 0 && writerClosed) {
+		lock.release();
+		return events;
+	}
+	
+	public void addPollWaiter(PollWaiter waiter) {
+		lock.acquire();
+		pollWaiters.add(waiter);
+		lock.release();
+	}
+	
+	public void removePollWaiter(PollWaiter waiter) {
+		lock.acquire();
+		pollWaiters.remove(waiter);
+		lock.release();
+	}
+	
+	// Without <i>block</i>, read() and write() return Pollable.wouldBlock
+	// instead of waiting, and write() stops short once the pipe is full.
+	public int read(byte[] data, int offset, int length, boolean block) {
+		lock.acquire();
+		
+		if (!block && count == 0 && !writerClosed && !freed) {
 			lock.release();
-			return 0;
+			return Pollable.wouldBlock;
+		}
+		if (!awaitData()) {
+			lock.release();
+			return -1;
 		}
 		
 		int bytesRead = Math.min(length, count);
-		for (int i = 0; i < bytesRead; i++) {
-			data[offset + i] = buffer[readPos];
-			readPos = (readPos + 1) % buffer.length;
-		}
-		count -= bytesRead;
+		int first = Math.min(bytesRead, buffer.length - readPos);
+		System.arraycopy(buffer, readPos, data, offset, first);
+		System.arraycopy(buffer, 0, data, offset + first, bytesRead - first);
+		consumed(bytesRead);
 		
-		notFull.wake();
 		lock.release();
 		return bytesRead;
 	}
 	
-	public int write(byte[] data, int offset, int length) {
+	public int write(byte[] data, int offset, int length, boolean block) {
 		lock.acquire();
 		
-		if (readerClosed) {
-			lock.release();
-			return -1;
-		}
-		
 		int bytesWritten = 0;
-		while (bytesWritten < length && !readerClosed) {
-			while (count == buffer.length && !readerClosed) {
-				notFull.sleep();
+		while (bytesWritten < length) {
+			if (!block && !freed && !readerClosed && count == buffer.length) {
+				if (bytesWritten == 0) {
+					lock.release();
+					return Pollable.wouldBlock;
+				}
+				break;
 			}
-			
-			if (readerClosed) {
+			if (!awaitSpace()) {
 				lock.release();
 				return -1;
 			}
 			
 			int toWrite = Math.min(length - bytesWritten, buffer.length - count);
-			for (int i = 0; i < toWrite; i++) {
-				buffer[writePos] = data[offset + bytesWritten + i];
-				writePos = (writePos + 1) % buffer.length;
-			}
-			count += toWrite;
+			int first = Math.min(toWrite, buffer.length - writePos);
+			System.arraycopy(data, offset + bytesWritten, buffer, writePos, first);
+			System.arraycopy(data, offset + bytesWritten + first, buffer, 0, toWrite - first);
+			produced(toWrite);
 			bytesWritten += toWrite;
-			
-			notEmpty.wake();
 		}
 		
+		flush();
 		lock.release();
 		return bytesWritten;
 	}
 	
+	// Splicing moves the data through a buffer of its own, so that the file
+	// I/O, which may block, is done without holding the pipe lock.
+	public int drainTo(OpenFile file, int length) {
+		byte[] data = new byte[Math.min(length, capacity)];
+		int moved = read(data, 0, data.length, true);
+		if (moved <= 0)
+			return moved;
+		
+		return file.write(data, 0, moved);
+	}
+	
+	public int fillFrom(OpenFile file, int length) {
+		lock.acquire();
+		
+		if (!awaitSpace()) {
+			lock.release();
+			return -1;
+		}
+		int toMove = Math.min(length, buffer.length - count);
+		
+		lock.release();
+		
+		byte[] data = new byte[toMove];
+		int moved = file.read(data, 0, toMove);
+		if (moved <= 0)
+			return moved;
+		
+		return write(data, 0, moved, true);
+	}
+	
+	public void openWriter() {
+		lock.acquire();
+		writers++;
+		lock.release();
+	}
+	
+	public void openReader() {
+		lock.acquire();
+		readers++;
+		readerClosed = false;
+		lock.release();
+	}
+	
 	public void closeWriter() {
 		lock.acquire();
-		writerClosed = true;
-		notEmpty.wakeAll();
+		if (--writers == 0) {
+			writerClosed = true;
+			notEmpty.wakeAll();
+			signalPollers();
+		}
 		lock.release();
 	}
 	
 	public void closeReader() {
 		lock.acquire();
-		readerClosed = true;
-		notFull.wakeAll();
+		if (--readers == 0) {
+			readerClosed = true;
+			notFull.wakeAll();
+			signalPollers();
+		}
+		lock.release();
+	}
+	
+	public void unlink() {
+		lock.acquire();
+		linked = false;
+		lock.release();
+	}
+	
+	public boolean isLinked() {
+		lock.acquire();
+		boolean result = linked;
+		lock.release();
+		return result;
+	}
+	
+	// A pipe with no open ends is freed once nothing can still read its
+	// data: either it is empty, or its name has been unlinked.
+	public boolean isUnused() {
+		lock.acquire();
+		boolean result = !freed && readers == 0 && writers == 0
+				&& (count == 0 || !linked);
+		lock.release();
+		return result;
+	}
+	
+	public void free() {
+		lock.acquire();
+		freed = true;
+		buffer = null;
+		Lib.debug(dbgPipe, "freed " + name + ": " + bytesWritten + " bytes in, "
+				+ bytesRead + " bytes out, " + writerBlocks + " writer blocks, "
+				+ readerBlocks + " reader blocks");
 		lock.release();
 	}
+	
+	// Both return false if the pipe was freed under an asynchronous I/O
+	// request whose file descriptor has since been closed.
+	private boolean awaitData() {
+		while (count == 0 && !writerClosed) {
+			readerBlocks++;
+			readersWaiting++;
+			notEmpty.sleep();
+			readersWaiting--;
+		}
+		return !freed;
+	}
+	
+	private boolean awaitSpace() {
+		while (!freed && count == buffer.length && !readerClosed) {
+			writerBlocks++;
+			writersWaiting++;
+			notFull.sleep();
+			writersWaiting--;
+		}
+		return !freed && !readerClosed;
+	}
+	
+	// Writers sleep until the reader has drained the pipe to the low
+	// watermark, and readers are woken mid-write only once the pipe reaches
+	// the high watermark, so a large transfer costs a few context switches
+	// rather than one per chunk.
+	private void consumed(int n) {
+		boolean wasFull = (count == buffer.length);
+		readPos = (readPos + n) % buffer.length;
+		count -= n;
+		bytesRead += n;
+		if (writersWaiting > 0 && count <= lowWater)
+			notFull.wakeAll();
+		if (wasFull && n > 0)
+			signalPollers();
+	}
+	
+	private void produced(int n) {
+		writePos = (writePos + n) % buffer.length;
+		count += n;
+		bytesWritten += n;
+		if (readersWaiting > 0 && count >= highWater)
+			notEmpty.wakeAll();
+	}
+	
+	private void flush() {
+		if (readersWaiting > 0 && count > 0)
+			notEmpty.wakeAll();
+		if (count > 0)
+			signalPollers();
+	}
+	
+	private void signalPollers() {
+		for (PollWaiter waiter : pollWaiters)
+			waiter.signal();
+	}
+	
+	private static final char dbgPipe = 'f';
 }
 
-class PipeFile extends OpenFile {
+class PipeFile extends OpenFile implements Pollable {
+	private PipeRegistry registry;
 	private Pipe pipe;
 	private boolean isWriter;
 	
-	public PipeFile(Pipe pipe, boolean isWriter) {
+	public PipeFile(PipeRegistry registry, Pipe pipe, boolean isWriter) {
 		super(null, "pipe");
+		this.registry = registry;
 		this.pipe = pipe;
 		this.isWriter = isWriter;
 	}
 	
 	public int read(byte[] buf, int offset, int length) {
 		if (isWriter) return -1;
-		return pipe.read(buf, offset, length);
+		return pipe.read(buf, offset, length, true);
 	}
 	
 	public int write(byte[] buf, int offset, int length) {
 		if (!isWriter) return -1;
-		return pipe.write(buf, offset, length);
+		return pipe.write(buf, offset, length, true);
+	}
+	
+	public int readNow(byte[] buf, int offset, int length) {
+		if (isWriter) return -1;
+		return pipe.read(buf, offset, length, false);
+	}
+	
+	public int writeNow(byte[] buf, int offset, int length) {
+		if (!isWriter) return -1;
+		return pipe.write(buf, offset, length, false);
+	}
+	
+	public Pipe getPipe() {
+		return pipe;
+	}
+	
+	public int readyEvents() {
+		return pipe.readyEvents(isWriter);
+	}
+	
+	public void addPollWaiter(PollWaiter waiter) {
+		pipe.addPollWaiter(waiter);
+	}
+	
+	public void removePollWaiter(PollWaiter waiter) {
+		pipe.removePollWaiter(waiter);
+	}
+	
+	public boolean isWriter() {
+		return isWriter;
 	}
 	
 	public void close() {
@@ -745,5 +1451,6 @@ class PipeFile extends OpenFile {
 		} else {
 			pipe.closeReader();
 		}
+		registry.release(pipe);
 	}
 }
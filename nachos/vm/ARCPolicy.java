@@ -0,0 +1,89 @@
+package nachos.vm;
+
+import java.util.*;
+
+/**
+ * Adaptive replacement, in the clock form of Bansal and Modha (CAR), since
+ * the processor gives us used bits rather than every reference. T1 holds
+ * pages seen once and T2 pages seen again; the ghost lists B1 and B2
+ * remember pages recently evicted from each. A fault on a page in B1 means
+ * T1 was too small, and one in B2 that T2 was, so the target size of T1
+ * adapts to the workload.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+    private LinkedHashSet<Integer> t1, t2;
+    private LinkedHashSet<Long> b1, b2;
+    private long[] keys;
+    private int capacity;
+    private int target;
+
+    public void initialize(int numFrames) {
+        t1 = new LinkedHashSet<>();
+        t2 = new LinkedHashSet<>();
+        b1 = new LinkedHashSet<>();
+        b2 = new LinkedHashSet<>();
+        keys = new long[numFrames];
+        capacity = numFrames;
+        target = 0;
+    }
+
+    public void pageLoaded(int ppn, long key) {
+        keys[ppn] = key;
+
+        if (b1.remove(key)) {
+            target = Math.min(capacity, target + Math.max(1, b2.size() / Math.max(1, b1.size())));
+            t2.add(ppn);
+        } else if (b2.remove(key)) {
+            target = Math.max(0, target - Math.max(1, b1.size() / Math.max(1, b2.size())));
+            t2.add(ppn);
+        } else {
+            t1.add(ppn);
+        }
+
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty()) {
+            b1.remove(b1.iterator().next());
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity && !b2.isEmpty()) {
+            b2.remove(b2.iterator().next());
+        }
+    }
+
+    public void pageFreed(int ppn) {
+        t1.remove(ppn);
+        t2.remove(ppn);
+    }
+
+    public int selectVictim() {
+        boolean fromT1 = !t1.isEmpty() && (t1.size() >= Math.max(1, target) || t2.isEmpty());
+
+        // Fall back on the other list if every frame in the preferred one
+        // is pinned or still being filled in.
+        int ppn = sweep(fromT1);
+        return (ppn != -1) ? ppn : sweep(!fromT1);
+    }
+
+    public int nextCandidate() {
+        boolean fromT1 = !t1.isEmpty() && (t1.size() >= Math.max(1, target) || t2.isEmpty());
+        LinkedHashSet<Integer> list = fromT1 ? t1 : t2;
+        return list.isEmpty() ? 0 : list.iterator().next();
+    }
+
+    private int sweep(boolean fromT1) {
+        LinkedHashSet<Integer> list = fromT1 ? t1 : t2;
+
+        for (int i = 2 * list.size(); i > 0 && !list.isEmpty(); i--) {
+            int ppn = list.iterator().next();
+            list.remove(ppn);
+
+            if (!VMKernel.isEvictable(ppn)) {
+                list.add(ppn);
+            } else if (VMKernel.testAndClearReferenced(ppn)) {
+                t2.add(ppn);
+            } else {
+                (fromT1 ? b1 : b2).add(keys[ppn]);
+                return ppn;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,60 @@
+package nachos.vm;
+
+/**
+ * Aging, the shift-register refinement of not-frequently-used. Each frame
+ * keeps an 8-bit history of its used bit, sampled at every eviction: the
+ * history shifts right and the used bit enters at the top. The frame with
+ * the smallest history, used least often and least recently, is evicted.
+ */
+public class AgingPolicy implements ReplacementPolicy {
+    private int numFrames;
+    private int[] age;
+    private int start;
+
+    public void initialize(int numFrames) {
+        this.numFrames = numFrames;
+        age = new int[numFrames];
+        start = 0;
+    }
+
+    public void pageLoaded(int ppn, long key) {
+        age[ppn] = historyBit;
+    }
+
+    public void pageFreed(int ppn) {
+        age[ppn] = 0;
+    }
+
+    public int nextCandidate() {
+        return start;
+    }
+
+    public int selectVictim() {
+        int victim = -1;
+
+        // Start the scan where the last one left off, so that ties do not
+        // always fall on the same low-numbered frames.
+        for (int i = 0; i < numFrames; i++) {
+            int ppn = (start + i) % numFrames;
+            if (!VMKernel.isEvictable(ppn)) {
+                continue;
+            }
+
+            age[ppn] >>= 1;
+            if (VMKernel.testAndClearReferenced(ppn)) {
+                age[ppn] |= historyBit;
+            }
+            if (victim == -1 || age[ppn] < age[victim]) {
+                victim = ppn;
+            }
+        }
+
+        if (victim != -1) {
+            start = (victim + 1) % numFrames;
+            age[victim] = 0;
+        }
+        return victim;
+    }
+
+    private static final int historyBit = 0x80;
+}
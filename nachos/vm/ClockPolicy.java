@@ -0,0 +1,37 @@
+package nachos.vm;
+
+/**
+ * The second-chance clock: the hand sweeps the frames, clearing used bits,
+ * and evicts the first frame found unused since the hand last passed it.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private int numFrames;
+    private int hand;
+
+    public void initialize(int numFrames) {
+        this.numFrames = numFrames;
+        hand = 0;
+    }
+
+    public void pageLoaded(int ppn, long key) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int nextCandidate() {
+        return hand;
+    }
+
+    public int selectVictim() {
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (VMKernel.isEvictable(ppn) && !VMKernel.testAndClearReferenced(ppn)) {
+                return ppn;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,160 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A pool of compressed swap pages kept in host memory, in front of the swap
+ * file. Pages are stored by swap slot, deflated, and pages of all zeros are
+ * stored as a flag alone. Pages that do not shrink by at least a quarter
+ * are turned away and go to the file as usual.
+ *
+ * The pool is bounded by <tt>VMKernel.swapCacheBytes</tt>; when it runs
+ * over, VMKernel spills the oldest pages to the swap file. The caller must
+ * serialize access.
+ */
+public class CompressedSwapCache {
+    private LinkedHashMap<Integer, byte[]> pages;
+    private int byteBudget;
+    private int storedBytes;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] scratch;
+
+    private long bytesIn = 0, bytesOut = 0;
+    private int numStored = 0, numZeroPages = 0, numRejected = 0;
+    private int numHits = 0, numMisses = 0, numSpills = 0;
+
+    public CompressedSwapCache(int byteBudget) {
+        this.byteBudget = byteBudget;
+        pages = new LinkedHashMap<>();
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        inflater = new Inflater();
+        scratch = new byte[pageSize + 64];
+    }
+
+    /**
+     * Store the page at <i>offset</i> in <i>data</i> as the contents of
+     * <i>slot</i>, replacing any copy already held.
+     *
+     * @return <tt>true</tt> if the page was stored, or <tt>false</tt> if it
+     * must be written to the swap file instead.
+     */
+    public boolean put(int slot, byte[] data, int offset) {
+        remove(slot);
+        if (byteBudget <= 0) {
+            return false;
+        }
+
+        byte[] stored;
+        if (isZeroPage(data, offset)) {
+            stored = zeroPage;
+            numZeroPages++;
+        } else {
+            deflater.reset();
+            deflater.setInput(data, offset, pageSize);
+            deflater.finish();
+            int length = deflater.deflate(scratch);
+            if (!deflater.finished() || length > maxStoredLength) {
+                numRejected++;
+                return false;
+            }
+            stored = Arrays.copyOf(scratch, length);
+        }
+
+        pages.put(slot, stored);
+        storedBytes += stored.length + entryOverhead;
+        bytesIn += pageSize;
+        bytesOut += stored.length;
+        numStored++;
+        return true;
+    }
+
+    /**
+     * Copy the contents of <i>slot</i> into <i>data</i> at <i>offset</i>, if
+     * the pool holds them.
+     *
+     * @return <tt>true</tt> on a hit.
+     */
+    public boolean get(int slot, byte[] data, int offset) {
+        byte[] stored = pages.get(slot);
+        if (stored == null) {
+            numMisses++;
+            return false;
+        }
+
+        expand(stored, data, offset);
+        numHits++;
+        return true;
+    }
+
+    /**
+     * Drop any copy of <i>slot</i>.
+     */
+    public void remove(int slot) {
+        byte[] stored = pages.remove(slot);
+        if (stored != null) {
+            storedBytes -= stored.length + entryOverhead;
+        }
+    }
+
+    /**
+     * Test whether the pool is over its budget, so that pages must be
+     * spilled to the swap file.
+     */
+    public boolean isOverBudget() {
+        return storedBytes > byteBudget && !pages.isEmpty();
+    }
+
+    /**
+     * Remove the oldest page from the pool, expanding it into <i>data</i> at
+     * <i>offset</i> so it can be written to the swap file.
+     *
+     * @return its swap slot.
+     */
+    public int spill(byte[] data, int offset) {
+        int slot = pages.keySet().iterator().next();
+        expand(pages.get(slot), data, offset);
+        remove(slot);
+        numSpills++;
+        return slot;
+    }
+
+    public String getStatistics() {
+        int ratio = (bytesIn == 0) ? 0 : (int) (100 * bytesOut / bytesIn);
+        return numStored + " pages stored (" + numZeroPages + " zero, "
+                + numRejected + " incompressible), " + ratio + "% of original size, "
+                + numHits + " hits, " + numMisses + " misses, " + numSpills + " spills";
+    }
+
+    private void expand(byte[] stored, byte[] data, int offset) {
+        if (stored == zeroPage) {
+            Arrays.fill(data, offset, offset + pageSize, (byte) 0);
+            return;
+        }
+
+        inflater.reset();
+        inflater.setInput(stored);
+        try {
+            Lib.assertTrue(inflater.inflate(data, offset, pageSize) == pageSize);
+        } catch (DataFormatException e) {
+            Lib.assertNotReached("corrupt compressed swap page");
+        }
+    }
+
+    private static boolean isZeroPage(byte[] data, int offset) {
+        for (int i = offset; i < offset + pageSize; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final int pageSize = Processor.pageSize;
+    private static final int maxStoredLength = pageSize * 3 / 4;
+    private static final int entryOverhead = 16;
+    private static final byte[] zeroPage = new byte[0];
+}
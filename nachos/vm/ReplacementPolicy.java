@@ -0,0 +1,39 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical frame VMKernel evicts when memory is full. The
+ * policy to use is named by the <tt>VMKernel.replacementPolicy</tt> key.
+ *
+ * All methods are called with VMKernel's vmLock held. A policy learns about
+ * references through <tt>VMKernel.testAndClearReferenced()</tt>, since the
+ * processor only keeps a used bit per page.
+ */
+public interface ReplacementPolicy {
+    /**
+     * Prepare to manage <i>numFrames</i> frames, all initially free.
+     */
+    void initialize(int numFrames);
+
+    /**
+     * Note that a frame has been given to the page identified by <i>key</i>.
+     */
+    void pageLoaded(int ppn, long key);
+
+    /**
+     * Note that a frame was freed other than by eviction.
+     */
+    void pageFreed(int ppn);
+
+    /**
+     * Choose a frame to evict, and stop tracking it.
+     *
+     * @return the frame, or -1 if no frame can be evicted right now.
+     */
+    int selectVictim();
+
+    /**
+     * Return the frame the policy will consider first when next asked for a
+     * victim, so the page cleaner can write it back ahead of time.
+     */
+    int nextCandidate();
+}
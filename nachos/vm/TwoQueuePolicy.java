@@ -0,0 +1,85 @@
+package nachos.vm;
+
+import java.util.*;
+
+/**
+ * The 2Q policy of Johnson and Shasha. Pages faulted in for the first time
+ * join a FIFO queue, A1in, so a one-off scan cannot push out the hot set.
+ * Pages evicted from A1in are remembered in a ghost queue, A1out; a page
+ * that faults again while remembered has shown it is reused and joins the
+ * main queue, Am, which is managed as a second-chance clock.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private LinkedHashSet<Integer> a1in, am;
+    private LinkedHashSet<Long> a1out;
+    private long[] keys;
+    private int kin, kout;
+
+    public void initialize(int numFrames) {
+        a1in = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        keys = new long[numFrames];
+        kin = Math.max(1, numFrames / 4);
+        kout = Math.max(1, numFrames / 2);
+    }
+
+    public void pageLoaded(int ppn, long key) {
+        keys[ppn] = key;
+        if (a1out.remove(key)) {
+            am.add(ppn);
+        } else {
+            a1in.add(ppn);
+        }
+    }
+
+    public void pageFreed(int ppn) {
+        a1in.remove(ppn);
+        am.remove(ppn);
+    }
+
+    public int selectVictim() {
+        if (a1in.size() > kin || am.isEmpty()) {
+            int ppn = evictFromA1in();
+            if (ppn != -1) {
+                return ppn;
+            }
+        }
+
+        int ppn = evictFromAm();
+        return (ppn != -1) ? ppn : evictFromA1in();
+    }
+
+    public int nextCandidate() {
+        if (!a1in.isEmpty() && (a1in.size() > kin || am.isEmpty())) {
+            return a1in.iterator().next();
+        }
+        return am.isEmpty() ? 0 : am.iterator().next();
+    }
+
+    private int evictFromA1in() {
+        for (int ppn : a1in) {
+            if (VMKernel.isEvictable(ppn)) {
+                a1in.remove(ppn);
+                a1out.add(keys[ppn]);
+                if (a1out.size() > kout) {
+                    a1out.remove(a1out.iterator().next());
+                }
+                return ppn;
+            }
+        }
+        return -1;
+    }
+
+    private int evictFromAm() {
+        for (int i = 2 * am.size(); i > 0 && !am.isEmpty(); i--) {
+            int ppn = am.iterator().next();
+            am.remove(ppn);
+            if (VMKernel.isEvictable(ppn) && !VMKernel.testAndClearReferenced(ppn)) {
+                return ppn;
+            }
+            am.add(ppn);
+        }
+        return -1;
+    }
+}
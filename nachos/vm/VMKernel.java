@@ -11,11 +11,21 @@ public class VMKernel extends UserKernel {
     private static HashMap<Integer, VMProcess> processMap;
     private static InvertedPageTable pageTable;
     private static OpenFile swapFile;
-    private static int swapPageCounter;
-    private static LinkedList<Integer> freeSwapPages;
-    private static Lock swapLock;
+    private static BitSet usedSwapPages;
+    private static HashMap<Integer, Integer> swapReferences;
+    private static int clusterPages;
+    private static CompressedSwapCache swapCache;
+    private static int numSwapWrites = 0, numSwapPagesWritten = 0;
+    private static Lock swapLock, slotLock;
+    private static ArrayList<Integer> freedSlots;
+    private static BitSet spillingSlots;
+    private static Condition2 spillsFinished;
+    private static HashMap<Long, Integer> pagesInTransit;
     private static Condition2 pagesAvailable;
-    private static int clockHand;
+    private static ReplacementPolicy policy;
+    private static String policyName;
+    private static int numFaults = 0, numEvictions = 0, numWriteBacks = 0;
+    private static WeakHashMap<CoffSection, int[]> textFrames;
     
     public VMKernel() {
         super();
@@ -34,11 +44,53 @@ public class VMKernel extends UserKernel {
             Lib.assertNotReached();
         }
         
-        swapPageCounter = 0;
-        freeSwapPages = new LinkedList<>();
+        usedSwapPages = new BitSet();
+        swapReferences = new HashMap<>();
+        clusterPages = Math.max(1, Config.getInteger("VMKernel.swapClusterPages", 8));
+        swapCache = new CompressedSwapCache(Config.getInteger("VMKernel.swapCacheBytes", 64 * 1024));
         swapLock = new Lock();
+        slotLock = new Lock();
+        freedSlots = new ArrayList<>();
+        spillingSlots = new BitSet();
+        spillsFinished = new Condition2(swapLock);
+        pagesInTransit = new HashMap<>();
         pagesAvailable = new Condition2(vmLock);
-        clockHand = 0;
+        policyName = Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy");
+        policy = (ReplacementPolicy) Lib.constructObject(policyName);
+        policy.initialize(Machine.processor().getNumPhysPages());
+        textFrames = new WeakHashMap<>();
+        
+        zeroFrame = UserKernel.allocatePage();
+        zeroFillPage(zeroFrame);
+        
+        maxPinnedPages = Math.max(1, Config.getInteger("VMKernel.maxPinnedPages",
+                Machine.processor().getNumPhysPages() / 4));
+        
+        cleanerInterval = Config.getInteger("VMKernel.cleanerInterval", 5000);
+        cleanerBatch = Config.getInteger("VMKernel.cleanerBatch", 4);
+        cleanerThreshold = Config.getInteger("VMKernel.cleanerThreshold",
+                Machine.processor().getNumPhysPages() / 8);
+        
+        int numPhysPages = Machine.processor().getNumPhysPages();
+        lowWatermark = Config.getInteger("VMKernel.lowWatermark", Math.max(1, numPhysPages / 16));
+        highWatermark = Math.max(lowWatermark,
+                Config.getInteger("VMKernel.highWatermark", Math.max(2, numPhysPages / 8)));
+        reclaimNeeded = new Condition2(vmLock);
+        if (lowWatermark > 0) {
+            new KThread(new Runnable() {
+                public void run() {
+                    reclaimLoop();
+                }
+            }).setName("kswapd").fork();
+        }
+        
+        if (cleanerInterval > 0 && cleanerBatch > 0) {
+            new KThread(new Runnable() {
+                public void run() {
+                    cleanerLoop();
+                }
+            }).setName("page cleaner").fork();
+        }
     }
 
     public void selfTest() {
@@ -50,6 +102,28 @@ public class VMKernel extends UserKernel {
     }
 
     public void terminate() {
+        Lib.debug(dbgVM, policyName + ": " + numFaults + " faults, "
+                + numEvictions + " evictions (" + numReclaimed + " by kswapd), "
+                + numWriteBacks + " write-backs");
+        Lib.debug(dbgVM, "swap: " + numSwapPagesWritten + " pages in "
+                + numSwapWrites + " writes, " + numPagesCleaned + " pages cleaned, "
+                + numTransitWaits + " faults waited for a page-out");
+        Lib.debug(dbgVM, "swap cache: " + swapCache.getStatistics());
+        Lib.debug(dbgVM, "zero page: " + numZeroMaps + " faults mapped it, "
+                + numZeroCopies + " copied on write, " + numZeroDrops + " all-zero pages dropped");
+        Lib.debug(dbgVM, "read-ahead: " + numReadAheadPages + " pages, "
+                + numReadAheadWasted + " evicted unused");
+        
+        // Stop the daemons and let every page-out finish before the swap
+        // file goes away; removing it can yield to them.
+        vmLock.acquire();
+        shuttingDown = true;
+        reclaimNeeded.wakeAll();
+        while (numPageOutsInFlight > 0) {
+            pagesAvailable.sleep();
+        }
+        vmLock.release();
+        
         if (swapFile != null) {
             swapFile.close();
             ThreadedKernel.fileSystem.remove("SWAP_FILE_NACHOS");
@@ -72,128 +146,1153 @@ public class VMKernel extends UserKernel {
     public static int allocatePhysicalPage(VMProcess process, int vpn) {
         vmLock.acquire();
         
-        int ppn = -1;
-        for (int i = 0; i < pageTable.size(); i++) {
-            if (!pageTable.isOccupied(i)) {
-                ppn = i;
-                pageTable.setEntry(i, process, vpn);
-                break;
-            }
-        }
+        // The page may have been evicted with its write still under way.
+        awaitPageOut(process, vpn);
         
-        if (ppn == -1) {
-            ppn = evictPage();
-            if (ppn != -1) {
-                pageTable.setEntry(ppn, process, vpn);
-            }
+        PageOut out = null;
+        int ppn = UserKernel.allocatePage();
+        if (ppn != -1) {
+            Machine.incrNumReserveHits();
+        } else {
+            Machine.incrNumReserveMisses();
+            TranslationEntry[] entries;
+            do {
+                ppn = selectVictim();
+                entries = invalidateFrame(ppn);
+            } while (entries == null);
+            out = evictFrame(ppn, entries);
+        }
+        if (ppn != -1) {
+            pageTable.setEntry(ppn, process, vpn);
+            policy.pageLoaded(ppn, ((long) process.getPID() << 32) | vpn);
+            numFaults++;
         }
         
+        if (UserKernel.getNumFreePages() < lowWatermark) {
+            reclaimNeeded.wake();
+        }
         vmLock.release();
+        
+        if (out != null) {
+            finishPageOut(out);
+        }
         return ppn;
     }
     
-    private static int evictPage() {
-        int numPages = pageTable.size();
-        int startHand = clockHand;
+    /**
+     * Allocate a frame to read page <i>vpn</i> of <i>process</i> ahead of a
+     * fault. Read-ahead never evicts; it takes frames from the free-frame
+     * reserve and leaves kswapd to refill it.
+     *
+     * @return the frame, or -1 if none is free or the page is still being
+     * written out.
+     */
+    public static int allocateReadAheadPage(VMProcess process, int vpn) {
+        vmLock.acquire();
+        if (pagesInTransit.containsKey(((long) process.getPID() << 32) | vpn)) {
+            vmLock.release();
+            return -1;
+        }
         
+        int ppn = UserKernel.allocatePage();
+        if (ppn != -1) {
+            pageTable.setEntry(ppn, process, vpn);
+            policy.pageLoaded(ppn, ((long) process.getPID() << 32) | vpn);
+            numReadAheadPages++;
+        }
+        if (UserKernel.getNumFreePages() < lowWatermark) {
+            reclaimNeeded.wake();
+        }
+        vmLock.release();
+        return ppn;
+    }
+    
+    private static int selectVictim() {
         while (true) {
-            int currentHand = clockHand;
-            clockHand = (clockHand + 1) % numPages;
-            
-            if (pageTable.isPinned(currentHand)) {
-                if (clockHand == startHand) {
-                    while (pageTable.isPinned(currentHand)) {
-                        pagesAvailable.sleep();
-                        currentHand = clockHand;
-                        clockHand = (clockHand + 1) % numPages;
-                    }
-                }
-                continue;
+            int victim = policy.selectVictim();
+            if (victim != -1) {
+                return victim;
             }
             
-            VMProcessInfo info = pageTable.getProcessInfo(currentHand);
-            if (info == null) continue;
-            
-            VMProcess owner = processMap.get(info.pid);
-            if (owner == null) continue;
-            
-            TranslationEntry te = owner.getPageTableEntry(info.vpn);
-            if (te == null || !te.valid) continue;
+            // Every frame is pinned or still being filled in. Neither
+            // unpinning nor a fill completing wakes us, so let them run.
+            vmLock.release();
+            KThread.yield();
+            vmLock.acquire();
+        }
+    }
+    
+    /**
+     * Body of kswapd. Woken when a fault leaves fewer than lowWatermark
+     * frames free, it evicts pages until highWatermark frames are free, so
+     * that faults normally find a frame waiting and evictions happen in
+     * batches off the faulting thread. Each frame is freed as soon as its
+     * contents are copied; vmLock is dropped while the copy is written.
+     */
+    private static void reclaimLoop() {
+        vmLock.acquire();
+        while (!shuttingDown) {
+            reclaimNeeded.sleep();
             
-            if (te.used) {
-                te.used = false;
-                if (clockHand == startHand) {
+            while (!shuttingDown && UserKernel.getNumFreePages() < highWatermark) {
+                int victim = policy.selectVictim();
+                if (victim == -1) {
+                    break;
+                }
+                TranslationEntry[] entries = invalidateFrame(victim);
+                if (entries == null) {
                     continue;
                 }
+                PageOut out = evictFrame(victim, entries);
+                UserKernel.freePage(victim);
+                numReclaimed++;
+                pagesAvailable.wakeAll();
+                
+                if (out != null) {
+                    vmLock.release();
+                    finishPageOut(out);
+                    vmLock.acquire();
+                }
+            }
+        }
+        vmLock.release();
+    }
+    
+    /**
+     * Invalidate every mapping of a frame the policy chose as a victim. This
+     * is done under the frame's lock, since copies pin frames without
+     * vmLock. The caller must hold vmLock.
+     *
+     * @return the mappers' page table entries, or <tt>null</tt> if a copy
+     * pinned the frame after it was chosen, in which case the frame is
+     * handed back to the policy.
+     */
+    private static TranslationEntry[] invalidateFrame(int ppn) {
+        TranslationEntry[] entries = getMapperEntries(ppn);
+        Lib.assertTrue(entries != null);
+        
+        Lock frameLock = pageTable.getFrameLock(ppn);
+        frameLock.acquire();
+        boolean pinned = pageTable.isPinned(ppn);
+        if (!pinned) {
+            for (TranslationEntry te : entries) {
+                te.valid = false;
+            }
+        }
+        frameLock.release();
+        
+        if (pinned) {
+            VMProcessInfo mapper = pageTable.getMappers(ppn).get(0);
+            policy.pageLoaded(ppn, ((long) mapper.pid << 32) | mapper.vpn);
+            return null;
+        }
+        return entries;
+    }
+    
+    /**
+     * Take a frame invalidated by invalidateFrame() from its mappers so it
+     * can be reused at once. Any contents that must be saved are copied out,
+     * and returned as a page-out for the caller to finish after releasing
+     * vmLock. The caller must hold vmLock.
+     *
+     * @return the page-out, or <tt>null</tt> if nothing needs writing.
+     */
+    private static PageOut evictFrame(int ppn, TranslationEntry[] entries) {
+        List<VMProcessInfo> mappers = pageTable.getMappers(ppn);
+        
+        VMProcess[] owners = new VMProcess[entries.length];
+        boolean dirty = false;
+        for (int i = 0; i < entries.length; i++) {
+            owners[i] = processMap.get(mappers.get(i).pid);
+            dirty |= entries[i].dirty;
+            if (owners[i].readAheadEvicted(mappers.get(i).vpn, entries[i].used)) {
+                numReadAheadWasted++;
+            }
+        }
+        numEvictions++;
+        
+        VMProcess owner = owners[0];
+        int vpn = mappers.get(0).vpn;
+        SharedSegment segment = owner.getAttachedSegment(vpn);
+        PageOut out = null;
+        
+        if (segment != null) {
+            // Shared segment pages are swapped on behalf of the segment, so
+            // any attacher can fault them back in once the write is done.
+            int index = owner.getSharedPageIndex(vpn);
+            if (dirty || segment.dirty[index]) {
+                if (segment.swapPages[index] == -1) {
+                    segment.swapPages[index] = allocateSwapPage();
+                }
+                out = startPageOut(segment.swapPages[index], 1);
+                copyToPageOut(out, 0, ppn);
+                out.segment = segment;
+                out.segmentIndex = index;
+                segment.dirty[index] = false;
+                segment.frames[index] = sharedPageLoading;
+                numWriteBacks++;
             } else {
-                if (te.dirty) {
-                    int swapPage = allocateSwapPage();
-                    if (swapPage != -1) {
-                        writePageToSwap(currentHand, swapPage);
-                        owner.setSwapPage(info.vpn, swapPage);
+                segment.frames[index] = -1;
+            }
+        } else if (owner.isMappedPage(vpn)) {
+            if (dirty) {
+                out = startPageOut(-1, 1);
+                copyToPageOut(out, 0, ppn);
+                out.region = owner.getMappedRegion(vpn);
+                out.regionVPN = vpn;
+                markInTransit(out, owner, vpn);
+                numWriteBacks++;
+            }
+        } else if (owners.length == 1) {
+            // A clean page whose swap copy is current, or that never had
+            // one, is simply dropped, and so is a page that is all zeros
+            // again; it will fault in as the shared zero frame.
+            boolean mustWrite = dirty || (owner.hasSwapPage(vpn) && !owner.isSwapCopyCurrent(vpn));
+            if (mustWrite && isZeroFilled(ppn)) {
+                owner.setZeroPage(vpn);
+                numZeroDrops++;
+            } else if (mustWrite) {
+                out = gatherCluster(owner, vpn, ppn);
+                numWriteBacks++;
+            } else if (owner.hasSwapPage(vpn)) {
+                Machine.incrNumSwapSkips();
+            }
+        } else if (dirty || !isSwapCopyCurrent(owners, mappers)) {
+            // A copy-on-write frame keeps the slot its mappers already share,
+            // if nobody else holds it; otherwise they get a new shared slot.
+            int swapPage = owner.getSwapPage(vpn);
+            boolean reuse = (swapPage != -1 && getSwapReferences(swapPage) == owners.length);
+            for (int i = 1; i < owners.length && reuse; i++) {
+                reuse = (owners[i].getSwapPage(mappers.get(i).vpn) == swapPage);
+            }
+            
+            if (!reuse) {
+                swapPage = allocateSwapPage();
+                for (int i = 0; i < owners.length; i++) {
+                    if (i > 0) {
+                        shareSwapPage(swapPage);
+                    }
+                    int oldSwapPage = owners[i].getSwapPage(mappers.get(i).vpn);
+                    owners[i].setSwapPage(mappers.get(i).vpn, swapPage);
+                    if (oldSwapPage != -1) {
+                        freeSwapPage(oldSwapPage);
                     }
-                } else if (owner.hasSwapPage(info.vpn)) {
-                } else {
                 }
-                
-                te.valid = false;
-                pageTable.clearEntry(currentHand);
-                return currentHand;
             }
+            out = startPageOut(swapPage, 1);
+            copyToPageOut(out, 0, ppn);
+            for (int i = 0; i < owners.length; i++) {
+                owners[i].setSwapCopyCurrent(mappers.get(i).vpn, true);
+                markInTransit(out, owners[i], mappers.get(i).vpn);
+            }
+            numWriteBacks++;
+        } else if (owner.hasSwapPage(vpn)) {
+            Machine.incrNumSwapSkips();
         }
+        
+        pageTable.clearEntry(ppn);
+        return out;
     }
     
-    public static void pinPage(int ppn) {
+    /**
+     * Start a page-out of <i>count</i> pages to the swap slots starting at
+     * <i>firstSlot</i>, or of one page to a mapped file if <i>firstSlot</i>
+     * is -1. The page-out holds its own reference to each slot until it is
+     * finished, so no slot can be reused, or handed to a page that is
+     * written again, while its write is still pending. The caller must hold
+     * vmLock.
+     */
+    private static PageOut startPageOut(int firstSlot, int count) {
+        Lib.assertTrue(!shuttingDown);
+        PageOut out = new PageOut(firstSlot, count);
+        numPageOutsInFlight++;
+        for (int i = 0; i < count && firstSlot != -1; i++) {
+            shareSwapPage(firstSlot + i);
+        }
+        return out;
+    }
+    
+    private static void copyToPageOut(PageOut out, int index, int ppn) {
+        byte[] memory = Machine.processor().getMemory();
+        System.arraycopy(memory, ppn * pageSize, out.data, index * pageSize, pageSize);
+    }
+    
+    /**
+     * Record that page <i>vpn</i> of <i>process</i> is part of a page-out,
+     * so that a fault on it waits until the data is safely written. The
+     * caller must hold vmLock.
+     */
+    private static void markInTransit(PageOut out, VMProcess process, int vpn) {
+        long key = ((long) process.getPID() << 32) | vpn;
+        Integer count = pagesInTransit.get(key);
+        pagesInTransit.put(key, (count == null) ? 1 : count + 1);
+        out.pages.add(key);
+    }
+    
+    /**
+     * Write out a page-out started under vmLock, then let any faults waiting
+     * on its pages proceed. Must be called without vmLock, so that faults
+     * and copies in other pages are not held up by the write.
+     */
+    private static void finishPageOut(PageOut out) {
+        Lib.assertTrue(!vmLock.isHeldByCurrentThread());
+        
+        if (out.region != null) {
+            out.region.writeBackPage(out.regionVPN, out.data, 0);
+        } else {
+            writeCluster(out.data, out.firstSlot, out.count);
+        }
+        
+        for (int i = 0; i < out.count && out.firstSlot != -1; i++) {
+            freeSwapPage(out.firstSlot + i);
+        }
+        
         vmLock.acquire();
-        pageTable.pinPage(ppn);
+        for (long key : out.pages) {
+            int count = pagesInTransit.get(key) - 1;
+            if (count == 0) {
+                pagesInTransit.remove(key);
+            } else {
+                pagesInTransit.put(key, count);
+            }
+        }
+        if (out.segment != null) {
+            out.segment.frames[out.segmentIndex] = -1;
+        }
+        numPageOutsInFlight--;
+        pagesAvailable.wakeAll();
         vmLock.release();
     }
     
-    public static void unpinPage(int ppn) {
+    /**
+     * Wait until no page-out of page <i>vpn</i> of <i>process</i> is still
+     * being written, so that reading it back gets current data.
+     */
+    public static void waitForPageOut(VMProcess process, int vpn) {
         vmLock.acquire();
-        pageTable.unpinPage(ppn);
-        pagesAvailable.wakeAll();
+        awaitPageOut(process, vpn);
         vmLock.release();
     }
     
-    public static int allocateSwapPage() {
-        swapLock.acquire();
-        int swapPage;
+    private static void awaitPageOut(VMProcess process, int vpn) {
+        long key = ((long) process.getPID() << 32) | vpn;
+        if (pagesInTransit.containsKey(key)) {
+            numTransitWaits++;
+        }
+        while (pagesInTransit.containsKey(key)) {
+            pagesAvailable.sleep();
+        }
+    }
+    
+    /**
+     * Wait until no page of <i>process</i> is part of a page-out, so that
+     * every swap slot it holds has current data and can be shared. The
+     * caller must hold vmLock.
+     */
+    public static void awaitPageOuts(VMProcess process) {
+        long pid = process.getPID();
+        boolean waiting = true;
+        while (waiting) {
+            waiting = false;
+            for (long key : pagesInTransit.keySet()) {
+                if ((key >>> 32) == pid) {
+                    waiting = true;
+                    break;
+                }
+            }
+            if (waiting) {
+                numTransitWaits++;
+                pagesAvailable.sleep();
+            }
+        }
+    }
+    
+    private static boolean isZeroFilled(int ppn) {
+        byte[] memory = Machine.processor().getMemory();
+        for (int i = ppn * pageSize; i < (ppn + 1) * pageSize; i++) {
+            if (memory[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Start a page-out of private page <i>vpn</i> of <i>owner</i>, together
+     * with any run of dirty resident pages that follow it and can take the
+     * swap slots that follow its own, so they can go to swap in a single
+     * write. The pages after the first stay resident but become clean. The
+     * caller must hold vmLock.
+     *
+     * @return the page-out, starting at the slot now assigned to <i>vpn</i>.
+     */
+    private static PageOut gatherCluster(VMProcess owner, int vpn, int ppn) {
+        int maxCluster = clusterPages;
+        
+        int firstSlot = owner.getSwapPage(vpn);
+        boolean reused = (firstSlot != -1 && getSwapReferences(firstSlot) == 1);
         
-        if (!freeSwapPages.isEmpty()) {
-            swapPage = freeSwapPages.removeFirst();
+        int count = 1;
+        if (reused) {
+            while (count < maxCluster && canCluster(owner, vpn + count)
+                    && (owner.getSwapPage(vpn + count) == firstSlot + count
+                        ? getSwapReferences(firstSlot + count) == 1
+                        : owner.getSwapPage(vpn + count) == -1 && claimSwapPage(firstSlot + count))) {
+                count++;
+            }
         } else {
-            swapPage = swapPageCounter++;
+            while (count < maxCluster && canCluster(owner, vpn + count)
+                    && owner.getSwapPage(vpn + count) == -1) {
+                count++;
+            }
+            int oldSlot = firstSlot;
+            firstSlot = allocateSwapRun(count);
+            owner.setSwapPage(vpn, firstSlot);
+            if (oldSlot != -1) {
+                freeSwapPage(oldSlot);
+            }
         }
         
+        // Gather the cluster before anything can block. Neighbours are
+        // marked clean as they are copied, so a later store re-dirties them.
+        PageOut out = startPageOut(firstSlot, count);
+        copyToPageOut(out, 0, ppn);
+        owner.setSwapCopyCurrent(vpn, true);
+        markInTransit(out, owner, vpn);
+        for (int i = 1; i < count; i++) {
+            TranslationEntry te = owner.getPageTableEntry(vpn + i);
+            copyToPageOut(out, i, te.ppn);
+            te.dirty = false;
+            owner.setSwapPage(vpn + i, firstSlot + i);
+            owner.setSwapCopyCurrent(vpn + i, true);
+            markInTransit(out, owner, vpn + i);
+        }
+        return out;
+    }
+    
+    /**
+     * Write <i>count</i> gathered pages from <i>buffer</i> to the swap slots
+     * starting at <i>firstSlot</i>, in one write. The slots must belong to a
+     * page-out, so nobody reads them until this returns.
+     */
+    private static void writeCluster(byte[] buffer, int firstSlot, int count) {
+        boolean[] cached = new boolean[count];
+        swapLock.acquire();
+        // A slot freed and reused may still be spilling its old contents.
+        awaitSpills(firstSlot, count);
+        discardFreedSlots();
+        for (int i = 0; i < count; i++) {
+            cached[i] = swapCache.put(firstSlot + i, buffer, i * pageSize);
+        }
+        ArrayList<PageOut> spills = takeSpills();
         swapLock.release();
-        return swapPage;
+        
+        writeSpills(spills);
+        
+        // Pages the compressed cache turns away go to the file, in runs.
+        int run = 0;
+        for (int i = 0; i < count; i++) {
+            if (!cached[i]) {
+                run++;
+            } else if (run > 0) {
+                writeSwapRun(firstSlot + i - run, buffer, (i - run) * pageSize, run);
+                run = 0;
+            }
+        }
+        if (run > 0) {
+            writeSwapRun(firstSlot + count - run, buffer, (count - run) * pageSize, run);
+        }
     }
     
-    public static void freeSwapPage(int swapPage) {
+    /**
+     * Write <i>count</i> pages from <i>buffer</i> to the swap file, starting
+     * at slot <i>firstSlot</i>. The caller must own the slots' page-out or
+     * spill.
+     */
+    private static void writeSwapRun(int firstSlot, byte[] buffer, int offset, int count) {
+        int bytesWritten = swapFile.write(firstSlot * pageSize, buffer, offset, count * pageSize);
+        Lib.assertTrue(bytesWritten == count * pageSize);
+        numSwapWrites++;
+        numSwapPagesWritten += count;
+        for (int i = 0; i < count; i++) {
+            Machine.incrNumSwapWrites();
+        }
+    }
+    
+    /**
+     * Take the oldest pages out of the compressed cache until it is back
+     * within its budget, and mark their slots as spilling, so that nobody
+     * reads or rewrites them until writeSpills is done. Pages in adjacent
+     * slots are gathered into one run, so each run costs a single write.
+     * The caller must hold swapLock.
+     */
+    private static ArrayList<PageOut> takeSpills() {
+        TreeMap<Integer, byte[]> pages = new TreeMap<>();
+        while (swapCache.isOverBudget()) {
+            byte[] data = new byte[pageSize];
+            int slot = swapCache.spill(data, 0);
+            spillingSlots.set(slot);
+            pages.put(slot, data);
+        }
+        
+        ArrayList<PageOut> spills = new ArrayList<>();
+        while (!pages.isEmpty()) {
+            int firstSlot = pages.firstKey();
+            int count = 1;
+            while (pages.containsKey(firstSlot + count)) {
+                count++;
+            }
+            PageOut spill = new PageOut(firstSlot, count);
+            for (int i = 0; i < count; i++) {
+                byte[] data = pages.remove(firstSlot + i);
+                System.arraycopy(data, 0, spill.data, i * pageSize, pageSize);
+            }
+            spills.add(spill);
+        }
+        return spills;
+    }
+    
+    /**
+     * Write pages taken by takeSpills to the swap file, then let anyone
+     * waiting on their slots proceed. Must be called without swapLock.
+     */
+    private static void writeSpills(ArrayList<PageOut> spills) {
+        if (spills.isEmpty()) {
+            return;
+        }
+        
+        for (PageOut spill : spills) {
+            writeSwapRun(spill.firstSlot, spill.data, 0, spill.count);
+        }
+        
         swapLock.acquire();
-        freeSwapPages.add(swapPage);
+        for (PageOut spill : spills) {
+            spillingSlots.clear(spill.firstSlot, spill.firstSlot + spill.count);
+        }
+        spillsFinished.wakeAll();
         swapLock.release();
     }
     
-    public static void writePageToSwap(int ppn, int swapPage) {
+    /**
+     * Wait until none of the <i>count</i> slots starting at
+     * <i>firstSlot</i> is being spilled. The caller must hold swapLock.
+     */
+    private static void awaitSpills(int firstSlot, int count) {
+        while (!spillingSlots.get(firstSlot, firstSlot + count).isEmpty()) {
+            spillsFinished.sleep();
+        }
+    }
+    
+    /**
+     * Body of the page cleaner. Whenever free frames run low, it writes back
+     * a few dirty, unused private pages that the replacement policy is about
+     * to look at, so that evicting them later costs no write.
+     */
+    private static void cleanerLoop() {
+        while (true) {
+            ThreadedKernel.alarm.waitUntil(cleanerInterval);
+            if (UserKernel.getNumFreePages() > cleanerThreshold) {
+                continue;
+            }
+            
+            vmLock.acquire();
+            if (shuttingDown) {
+                vmLock.release();
+                return;
+            }
+            int start = policy.nextCandidate();
+            int cleaned = 0;
+            for (int i = 0; i < pageTable.size() && cleaned < cleanerBatch && !shuttingDown; i++) {
+                cleaned += cleanFrame((start + i) % pageTable.size());
+            }
+            vmLock.release();
+        }
+    }
+    
+    /**
+     * Write a frame back to swap, along with the dirty pages that follow it,
+     * and mark them clean, if it is a dirty private page that has not been
+     * used since the policy last looked. The pages stay resident and mapped;
+     * a store made after they are copied re-dirties them. The caller must
+     * hold vmLock, which is released during the write.
+     *
+     * @return the number of pages written, or 0 if the frame was skipped.
+     */
+    private static int cleanFrame(int ppn) {
+        if (!isEvictable(ppn) || pageTable.getReferenceCount(ppn) != 1) {
+            return 0;
+        }
+        
+        VMProcessInfo mapper = pageTable.getMappers(ppn).get(0);
+        VMProcess owner = processMap.get(mapper.pid);
+        int vpn = mapper.vpn;
+        TranslationEntry te = owner.getPageTableEntry(vpn);
+        if (!te.dirty || te.used || te.readOnly
+                || owner.isMappedPage(vpn) || owner.getAttachedSegment(vpn) != null) {
+            return 0;
+        }
+        // Leave zero pages for eviction, which drops them without a write.
+        if (isZeroFilled(ppn)) {
+            return 0;
+        }
+        
+        te.dirty = false;
+        PageOut out = gatherCluster(owner, vpn, ppn);
+        vmLock.release();
+        
+        finishPageOut(out);
+        
+        vmLock.acquire();
+        numPagesCleaned += out.count;
+        return out.count;
+    }
+    
+    private static boolean isSwapCopyCurrent(VMProcess[] owners, List<VMProcessInfo> mappers) {
+        for (int i = 0; i < owners.length; i++) {
+            int vpn = mappers.get(i).vpn;
+            if (owners[i].hasSwapPage(vpn) && !owners[i].isSwapCopyCurrent(vpn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean canCluster(VMProcess owner, int vpn) {
+        TranslationEntry te = owner.getPageTableEntry(vpn);
+        return te != null && te.valid && te.dirty && !te.readOnly
+                && !pageTable.isPinned(te.ppn) && pageTable.getReferenceCount(te.ppn) == 1
+                && !owner.isMappedPage(vpn) && owner.getAttachedSegment(vpn) == null
+                && !isZeroFilled(te.ppn);
+    }
+    
+    /**
+     * Return the page table entries of every mapper of a frame, or
+     * <tt>null</tt> if the frame is free or any mapper is still filling it
+     * in. The caller must hold vmLock.
+     */
+    private static TranslationEntry[] getMapperEntries(int ppn) {
+        List<VMProcessInfo> mappers = pageTable.getMappers(ppn);
+        if (mappers == null) {
+            return null;
+        }
+        
+        TranslationEntry[] entries = new TranslationEntry[mappers.size()];
+        for (int i = 0; i < entries.length; i++) {
+            VMProcess owner = processMap.get(mappers.get(i).pid);
+            entries[i] = (owner == null) ? null : owner.getPageTableEntry(mappers.get(i).vpn);
+            if (entries[i] == null || !entries[i].valid) {
+                return null;
+            }
+        }
+        return entries;
+    }
+    
+    /**
+     * Test whether a frame may be evicted now: it is in use, not pinned, and
+     * no mapper is still filling it in. For replacement policies; the caller
+     * must hold vmLock.
+     */
+    static boolean isEvictable(int ppn) {
+        return !pageTable.isPinned(ppn) && getMapperEntries(ppn) != null;
+    }
+    
+    /**
+     * Test whether any mapper has used a frame since the last call, and
+     * clear the used bits. A shared frame counts as used if any of its
+     * mappers used it.
+     */
+    static boolean testAndClearReferenced(int ppn) {
+        TranslationEntry[] entries = getMapperEntries(ppn);
+        if (entries == null) {
+            return false;
+        }
+        
+        List<VMProcessInfo> mappers = pageTable.getMappers(ppn);
+        boolean used = false;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].used) {
+                processMap.get(mappers.get(i).pid).readAheadUsed(mappers.get(i).vpn);
+                used = true;
+            }
+            entries[i].used = false;
+        }
+        return used;
+    }
+    
+    /**
+     * Test whether evicting a frame would require writing it back.
+     */
+    static boolean isDirty(int ppn) {
+        TranslationEntry[] entries = getMapperEntries(ppn);
+        if (entries == null) {
+            return false;
+        }
+        
+        for (TranslationEntry te : entries) {
+            if (te.dirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public static int getNumFaults() {
+        return numFaults;
+    }
+    
+    public static int getNumEvictions() {
+        return numEvictions;
+    }
+    
+    public static int getNumWriteBacks() {
+        return numWriteBacks;
+    }
+    
+    /**
+     * Give <i>process</i> a private, writable copy of the shared frame mapped
+     * at <i>vpn</i>. If no other process still maps the frame, it is simply
+     * made writable. Does nothing if the page is no longer resident; the next
+     * access will fault in a private copy.
+     */
+    public static void copyOnWrite(VMProcess process, int vpn) {
+        vmLock.acquire();
+        
+        TranslationEntry te = process.getPageTableEntry(vpn);
+        if (te == null || !te.valid) {
+            vmLock.release();
+            return;
+        }
+        
+        int oldPPN = te.ppn;
+        if (pageTable.getReferenceCount(oldPPN) == 1) {
+            te.readOnly = false;
+            vmLock.release();
+            return;
+        }
+        
+        // Keep the source frame resident while we copy, and hide our entry
+        // so that neither frame is judged by it in the meantime. The zero
+        // frame takes the same path; its mappings are not recorded, so
+        // removing ours below does nothing.
+        if (oldPPN == zeroFrame) {
+            numZeroCopies++;
+        }
+        pinFrame(oldPPN);
+        te.valid = false;
+        vmLock.release();
+        
+        int newPPN = allocatePhysicalPage(process, vpn);
+        Lib.assertTrue(newPPN != -1);
+        
         byte[] memory = Machine.processor().getMemory();
-        byte[] buffer = new byte[pageSize];
+        System.arraycopy(memory, oldPPN * pageSize, memory, newPPN * pageSize, pageSize);
+        
+        vmLock.acquire();
+        unpinFrame(oldPPN);
+        pageTable.removeMapping(oldPPN, process, vpn);
+        pagesAvailable.wakeAll();
+        
+        te.ppn = newPPN;
+        te.readOnly = false;
+        te.used = true;
+        te.dirty = true;
+        te.valid = true;
+        process.setSwapCopyCurrent(vpn, false);
+        vmLock.release();
+    }
+    
+    /**
+     * Map the shared zero frame read-only at <i>vpn</i> in <i>process</i>,
+     * for a page that is known to be all zeros. The first write to it takes
+     * a copy-on-write fault. The zero frame belongs to no process and is
+     * never evicted.
+     */
+    public static void mapZeroPage(VMProcess process, int vpn) {
+        vmLock.acquire();
+        TranslationEntry te = process.getPageTableEntry(vpn);
+        te.ppn = zeroFrame;
+        te.valid = true;
+        te.readOnly = true;
+        te.used = false;
+        te.dirty = false;
+        numZeroMaps++;
+        vmLock.release();
+    }
+    
+    /**
+     * Make page <i>index</i> of <i>segment</i> resident and map it at
+     * <i>vpn</i> in <i>process</i>. If another attacher already has the page
+     * in memory, its frame is simply shared.
+     */
+    public static void faultSharedPage(VMProcess process, int vpn, SharedSegment segment, int index) {
+        TranslationEntry te = process.getPageTableEntry(vpn);
+        
+        vmLock.acquire();
+        while (segment.frames[index] == sharedPageLoading) {
+            pagesAvailable.sleep();
+        }
         
-        System.arraycopy(memory, ppn * pageSize, buffer, 0, pageSize);
+        int ppn = segment.frames[index];
+        if (ppn == -1) {
+            segment.frames[index] = sharedPageLoading;
+            vmLock.release();
+            
+            ppn = allocatePhysicalPage(process, vpn);
+            Lib.assertTrue(ppn != -1);
+            if (segment.swapPages[index] != -1) {
+                readPageFromSwap(segment.swapPages[index], ppn);
+            } else {
+                zeroFillPage(ppn);
+            }
+            
+            vmLock.acquire();
+            segment.frames[index] = ppn;
+            pagesAvailable.wakeAll();
+        } else {
+            pageTable.addMapping(ppn, process, vpn);
+        }
+        
+        te.ppn = ppn;
+        te.valid = true;
+        te.readOnly = false;
+        te.used = false;
+        te.dirty = false;
+        vmLock.release();
+    }
+    
+    /**
+     * Make page <i>spn</i> of the read-only <i>section</i> resident and map
+     * it at <i>vpn</i> in <i>process</i>. Every process running the same
+     * image shares one frame per text page; the frame goes back on the free
+     * list when its last mapper exits or the clock finds no mapper has used
+     * it recently.
+     */
+    public static void faultTextPage(VMProcess process, int vpn, CoffSection section, int spn) {
+        TranslationEntry te = process.getPageTableEntry(vpn);
         
-        int bytesWritten = swapFile.write(swapPage * pageSize, buffer, 0, pageSize);
-        Lib.assertTrue(bytesWritten == pageSize);
+        vmLock.acquire();
+        int[] frames = textFrames.get(section);
+        if (frames == null) {
+            frames = new int[section.getLength()];
+            Arrays.fill(frames, -1);
+            textFrames.put(section, frames);
+        }
+        while (frames[spn] == sharedPageLoading) {
+            pagesAvailable.sleep();
+        }
+        
+        int ppn = frames[spn];
+        if (ppn == -1) {
+            frames[spn] = sharedPageLoading;
+            vmLock.release();
+            
+            ppn = allocatePhysicalPage(process, vpn);
+            Lib.assertTrue(ppn != -1);
+            section.loadPage(spn, ppn);
+            
+            vmLock.acquire();
+            frames[spn] = ppn;
+            pageTable.setText(ppn, frames, spn);
+            pagesAvailable.wakeAll();
+        } else {
+            pageTable.addMapping(ppn, process, vpn);
+            numTextShares++;
+        }
+        
+        te.ppn = ppn;
+        te.valid = true;
+        te.readOnly = true;
+        te.used = false;
+        te.dirty = false;
+        vmLock.release();
+    }
+    
+    /**
+     * Return the number of text page faults satisfied by a frame another
+     * process had already loaded.
+     */
+    public static int getNumTextShares() {
+        return numTextShares;
+    }
+    
+    /**
+     * Unmap page <i>index</i> of <i>segment</i> from <i>process</i>. If
+     * <i>keep</i> is set and this was the page's last mapper, its contents
+     * are saved to swap for the segment's remaining attachers.
+     */
+    public static void releaseSharedPage(VMProcess process, int vpn, SharedSegment segment, int index, boolean keep) {
+        vmLock.acquire();
+        
+        PageOut out = null;
+        TranslationEntry te = process.getPageTableEntry(vpn);
+        if (te != null && te.valid) {
+            int ppn = te.ppn;
+            te.valid = false;
+            if (te.dirty) {
+                segment.dirty[index] = true;
+            }
+            
+            if (pageTable.getReferenceCount(ppn) == 1) {
+                if (keep && (segment.dirty[index] || segment.swapPages[index] == -1)) {
+                    if (segment.swapPages[index] == -1) {
+                        segment.swapPages[index] = allocateSwapPage();
+                    }
+                    out = startPageOut(segment.swapPages[index], 1);
+                    copyToPageOut(out, 0, ppn);
+                    out.segment = segment;
+                    out.segmentIndex = index;
+                    segment.dirty[index] = false;
+                    segment.frames[index] = sharedPageLoading;
+                } else {
+                    segment.frames[index] = -1;
+                }
+            }
+            pageTable.removeMapping(ppn, process, vpn);
+            pagesAvailable.wakeAll();
+        }
+        
+        vmLock.release();
+        
+        if (out != null) {
+            finishPageOut(out);
+        }
+    }
+    
+    /**
+     * Map the resident frame behind <i>parent</i>'s page <i>vpn</i> into
+     * <i>child</i> at the same page as well. The caller must hold vmLock.
+     */
+    public static void shareFrame(VMProcess parent, VMProcess child, int vpn) {
+        Lib.assertTrue(vmLock.isHeldByCurrentThread());
+        
+        TranslationEntry te = parent.getPageTableEntry(vpn);
+        Lib.assertTrue(te != null && te.valid);
+        if (te.ppn != zeroFrame) {
+            pageTable.addMapping(te.ppn, child, vpn);
+        }
+    }
+    
+    public static void pinPage(int ppn) {
+        pinFrame(ppn);
+    }
+    
+    /**
+     * Fault in and pin the pages of <i>process</i> holding the <i>length</i>
+     * bytes at <i>vaddr</i>, in one pass, so a syscall can copy to or from
+     * them without looking at each page again. If <i>write</i> is set,
+     * copy-on-write pages are made private first. At most maxPinnedPages
+     * pages are pinned at once; callers copy longer buffers a range at a
+     * time.
+     *
+     * @return the pinned pages, which must be released when the copy is
+     * done.
+     */
+    public static PinnedRange pinRange(VMProcess process, int vaddr, int length, boolean write) {
+        int firstVPN = vaddr / pageSize;
+        int endVPN = Math.min(Lib.divRoundUp(vaddr + length, pageSize), firstVPN + maxPinnedPages);
+        PinnedRange range = new PinnedRange(firstVPN, endVPN - firstVPN);
+        
+        for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+            int ppn = pinResidentPage(process, vpn, write);
+            if (ppn == -1) {
+                // Pages already pinned stay put while this one faults in.
+                if (process.faultIn(vpn, Math.max(vaddr, vpn * pageSize), write)) {
+                    ppn = pinResidentPage(process, vpn, write);
+                }
+                if (ppn == -1) {
+                    range.truncated = true;
+                    break;
+                }
+            }
+            range.frames[range.numPages++] = ppn;
+        }
+        return range;
+    }
+    
+    /**
+     * Pin the frame behind page <i>vpn</i> of <i>process</i>, if it is
+     * resident, and writable if <i>write</i> is set. Only the frame's own
+     * lock is taken, so copies to and from different frames, and faults
+     * elsewhere, do not wait for each other.
+     *
+     * @return the frame, or -1 if the page is not resident.
+     */
+    private static int pinResidentPage(VMProcess process, int vpn, boolean write) {
+        TranslationEntry te = process.getPageTableEntry(vpn);
+        if (te == null || !te.valid || (write && te.readOnly)) {
+            return -1;
+        }
+        
+        // Evictions invalidate the entry under the same lock, so if it is
+        // still valid for this frame once we hold it, the pin is good.
+        int ppn = te.ppn;
+        Lock frameLock = pageTable.getFrameLock(ppn);
+        frameLock.acquire();
+        boolean resident = te.valid && te.ppn == ppn;
+        if (resident) {
+            pageTable.pinPage(ppn);
+        }
+        frameLock.release();
+        return resident ? ppn : -1;
+    }
+    
+    public static void unpinPage(int ppn) {
+        unpinFrame(ppn);
+    }
+    
+    private static void pinFrame(int ppn) {
+        Lock frameLock = pageTable.getFrameLock(ppn);
+        frameLock.acquire();
+        pageTable.pinPage(ppn);
+        frameLock.release();
+    }
+    
+    private static void unpinFrame(int ppn) {
+        Lock frameLock = pageTable.getFrameLock(ppn);
+        frameLock.acquire();
+        pageTable.unpinPage(ppn);
+        frameLock.release();
+    }
+    
+    public static int allocateSwapPage() {
+        return allocateSwapRun(1);
+    }
+    
+    /**
+     * Allocate <i>count</i> adjacent swap slots, from the first hole large
+     * enough or else at the end of the swap file.
+     */
+    private static int allocateSwapRun(int count) {
+        slotLock.acquire();
+        int first = usedSwapPages.nextClearBit(0);
+        while (true) {
+            int nextUsed = usedSwapPages.nextSetBit(first);
+            if (nextUsed == -1 || nextUsed - first >= count) {
+                break;
+            }
+            first = usedSwapPages.nextClearBit(nextUsed);
+        }
+        for (int slot = first; slot < first + count; slot++) {
+            usedSwapPages.set(slot);
+            swapReferences.put(slot, 1);
+        }
+        slotLock.release();
+        return first;
+    }
+    
+    /**
+     * Take a particular swap slot if it is free.
+     */
+    private static boolean claimSwapPage(int swapPage) {
+        slotLock.acquire();
+        boolean free = !usedSwapPages.get(swapPage);
+        if (free) {
+            usedSwapPages.set(swapPage);
+            swapReferences.put(swapPage, 1);
+        }
+        slotLock.release();
+        return free;
+    }
+    
+    private static int getSwapReferences(int swapPage) {
+        slotLock.acquire();
+        Integer references = swapReferences.get(swapPage);
+        slotLock.release();
+        return (references == null) ? 0 : references;
+    }
+    
+    public static void shareSwapPage(int swapPage) {
+        slotLock.acquire();
+        swapReferences.put(swapPage, swapReferences.get(swapPage) + 1);
+        slotLock.release();
+    }
+    
+    /**
+     * Drop a reference to a swap slot. A slot with no references left is
+     * free at once; its copy in the compressed cache is discarded by the
+     * next write, so that freeing, which may happen under vmLock, never
+     * waits on the cache lock.
+     */
+    public static void freeSwapPage(int swapPage) {
+        slotLock.acquire();
+        int references = swapReferences.get(swapPage) - 1;
+        if (references == 0) {
+            swapReferences.remove(swapPage);
+            usedSwapPages.clear(swapPage);
+            freedSlots.add(swapPage);
+        } else {
+            swapReferences.put(swapPage, references);
+        }
+        slotLock.release();
+    }
+    
+    /**
+     * Drop the cached copies of slots freed since the last call. Every write
+     * calls this before storing anything, so a slot that was freed and
+     * reused never loses its new contents. The caller must hold swapLock.
+     */
+    private static void discardFreedSlots() {
+        slotLock.acquire();
+        for (int slot : freedSlots) {
+            swapCache.remove(slot);
+        }
+        freedSlots.clear();
+        slotLock.release();
     }
     
     public static void readPageFromSwap(int swapPage, int ppn) {
         byte[] memory = Machine.processor().getMemory();
-        byte[] buffer = new byte[pageSize];
         
-        int bytesRead = swapFile.read(swapPage * pageSize, buffer, 0, pageSize);
+        swapLock.acquire();
+        awaitSpills(swapPage, 1);
+        boolean cached = swapCache.get(swapPage, memory, ppn * pageSize);
+        swapLock.release();
+        if (cached) {
+            return;
+        }
+        
+        int bytesRead = swapFile.read(swapPage * pageSize, memory, ppn * pageSize, pageSize);
         Lib.assertTrue(bytesRead == pageSize);
+        Machine.incrNumSwapReads();
+    }
+    
+    /**
+     * Read the run of swap slots starting at <i>firstSlot</i> into
+     * <i>ppns</i>, one slot per frame, in a single read.
+     */
+    public static void readPagesFromSwap(int firstSlot, int[] ppns) {
+        if (ppns.length == 1) {
+            readPageFromSwap(firstSlot, ppns[0]);
+            return;
+        }
+        
+        byte[] memory = Machine.processor().getMemory();
+        boolean[] cached = new boolean[ppns.length];
+        int first = -1, last = -1;
+        swapLock.acquire();
+        awaitSpills(firstSlot, ppns.length);
+        for (int i = 0; i < ppns.length; i++) {
+            cached[i] = swapCache.get(firstSlot + i, memory, ppns[i] * pageSize);
+            if (!cached[i]) {
+                first = (first == -1) ? i : first;
+                last = i;
+            }
+        }
+        swapLock.release();
+        if (first == -1) {
+            return;
+        }
         
-        System.arraycopy(buffer, 0, memory, ppn * pageSize, pageSize);
+        // Only the slots the cache missed are sure to be in the file.
+        byte[] buffer = new byte[(last - first + 1) * pageSize];
+        int bytesRead = swapFile.read((firstSlot + first) * pageSize, buffer, 0, buffer.length);
+        Lib.assertTrue(bytesRead == buffer.length);
+        for (int i = first; i <= last; i++) {
+            if (!cached[i]) {
+                System.arraycopy(buffer, (i - first) * pageSize, memory, ppns[i] * pageSize, pageSize);
+                Machine.incrNumSwapReads();
+            }
+        }
     }
     
     public static void zeroFillPage(int ppn) {
@@ -205,52 +1304,187 @@ public class VMKernel extends UserKernel {
         return vmLock;
     }
     
-    public static void freePhysicalPage(int ppn) {
+    public static void freePhysicalPage(VMProcess process, int vpn, int ppn) {
         vmLock.acquire();
-        pageTable.clearEntry(ppn);
+        pageTable.removeMapping(ppn, process, vpn);
+        pagesAvailable.wakeAll();
         vmLock.release();
     }
     
     private static class InvertedPageTable {
-        private VMProcessInfo[] entries;
-        private boolean[] pinned;
+        private ArrayList<ArrayList<VMProcessInfo>> entries;
+        private int[] pinCount;
+        private Lock[] frameLocks;
+        private int[][] textFrames;
+        private int[] textIndex;
         
         public InvertedPageTable(int size) {
-            entries = new VMProcessInfo[size];
-            pinned = new boolean[size];
+            entries = new ArrayList<>(size);
+            pinCount = new int[size];
+            frameLocks = new Lock[size];
+            for (int i = 0; i < size; i++) {
+                entries.add(null);
+                frameLocks[i] = new Lock();
+            }
+            textFrames = new int[size][];
+            textIndex = new int[size];
         }
         
         public int size() {
-            return entries.length;
+            return entries.size();
         }
         
-        public boolean isOccupied(int ppn) {
-            return entries[ppn] != null;
+        public void setEntry(int ppn, VMProcess process, int vpn) {
+            entries.set(ppn, new ArrayList<>(1));
+            entries.get(ppn).add(new VMProcessInfo(process.getPID(), vpn));
         }
         
-        public void setEntry(int ppn, VMProcess process, int vpn) {
-            entries[ppn] = new VMProcessInfo(process.getPID(), vpn);
+        public void addMapping(int ppn, VMProcess process, int vpn) {
+            Lib.assertTrue(entries.get(ppn) != null);
+            entries.get(ppn).add(new VMProcessInfo(process.getPID(), vpn));
+        }
+        
+        /**
+         * Drop one mapping of a frame, returning the frame to the allocator
+         * once nobody maps it.
+         */
+        public void removeMapping(int ppn, VMProcess process, int vpn) {
+            if (entries.get(ppn) == null) {
+                return;
+            }
+            
+            for (Iterator<VMProcessInfo> i = entries.get(ppn).iterator(); i.hasNext(); ) {
+                VMProcessInfo info = i.next();
+                if (info.pid == process.getPID() && info.vpn == vpn) {
+                    i.remove();
+                    break;
+                }
+            }
+            
+            if (entries.get(ppn).isEmpty()) {
+                clearEntry(ppn);
+                policy.pageFreed(ppn);
+                UserKernel.freePage(ppn);
+            }
+        }
+        
+        /**
+         * Record that a frame holds a shared text page, so the page's slot
+         * in <i>frames</i> is forgotten along with the frame.
+         */
+        public void setText(int ppn, int[] frames, int index) {
+            textFrames[ppn] = frames;
+            textIndex[ppn] = index;
         }
         
         public void clearEntry(int ppn) {
-            entries[ppn] = null;
-            pinned[ppn] = false;
+            entries.set(ppn, null);
+            pinCount[ppn] = 0;
+            if (textFrames[ppn] != null) {
+                textFrames[ppn][textIndex[ppn]] = -1;
+                textFrames[ppn] = null;
+            }
+        }
+        
+        public List<VMProcessInfo> getMappers(int ppn) {
+            return entries.get(ppn);
         }
         
-        public VMProcessInfo getProcessInfo(int ppn) {
-            return entries[ppn];
+        public int getReferenceCount(int ppn) {
+            return (entries.get(ppn) == null) ? 0 : entries.get(ppn).size();
         }
         
         public void pinPage(int ppn) {
-            pinned[ppn] = true;
+            pinCount[ppn]++;
         }
         
         public void unpinPage(int ppn) {
-            pinned[ppn] = false;
+            if (pinCount[ppn] > 0) {
+                pinCount[ppn]--;
+            }
         }
         
         public boolean isPinned(int ppn) {
-            return pinned[ppn];
+            return pinCount[ppn] > 0;
+        }
+        
+        /**
+         * Return the lock guarding a frame's pin count. Pins are taken
+         * under it alone; vmLock, if needed too, is taken first.
+         */
+        public Lock getFrameLock(int ppn) {
+            return frameLocks[ppn];
+        }
+    }
+    
+    /**
+     * A copy of pages on their way to swap or to a mapped file, taken under
+     * vmLock so that their frames can be reused at once and the write done
+     * after vmLock is released.
+     */
+    private static class PageOut {
+        public byte[] data;
+        public int firstSlot;
+        public int count;
+        public VMProcess.MappedRegion region;
+        public int regionVPN;
+        public SharedSegment segment;
+        public int segmentIndex;
+        public ArrayList<Long> pages = new ArrayList<>();
+        
+        public PageOut(int firstSlot, int count) {
+            this.data = new byte[count * pageSize];
+            this.firstSlot = firstSlot;
+            this.count = count;
+        }
+    }
+    
+    /**
+     * A run of a process's pages pinned by pinRange(), released together.
+     */
+    public static class PinnedRange {
+        private int firstVPN;
+        private int[] frames;
+        private int numPages = 0;
+        private boolean truncated = false;
+        
+        private PinnedRange(int firstVPN, int maxPages) {
+            this.firstVPN = firstVPN;
+            this.frames = new int[maxPages];
+        }
+        
+        /**
+         * Return the number of pages pinned, starting at the first page of
+         * the range.
+         */
+        public int getNumPages() {
+            return numPages;
+        }
+        
+        /**
+         * Test whether pinning stopped at a page that could not be made
+         * resident, rather than at the end of the buffer or the page limit.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+        
+        /**
+         * Return the frame holding page <i>vpn</i>, which must be pinned.
+         */
+        public int getFrame(int vpn) {
+            Lib.assertTrue(vpn >= firstVPN && vpn < firstVPN + numPages);
+            return frames[vpn - firstVPN];
+        }
+        
+        /**
+         * Unpin every page in the range.
+         */
+        public void release() {
+            for (int i = 0; i < numPages; i++) {
+                unpinFrame(frames[i]);
+            }
+            numPages = 0;
         }
     }
     
@@ -264,6 +1498,28 @@ public class VMKernel extends UserKernel {
         }
     }
 
+    private static final int sharedPageLoading = -2;
+    private static int numTextShares = 0;
+    
+    private static int maxPinnedPages;
+    
+    private static int cleanerInterval, cleanerBatch, cleanerThreshold;
+    private static int numPagesCleaned = 0;
+    
+    private static int lowWatermark, highWatermark;
+    private static Condition2 reclaimNeeded;
+    private static int numReclaimed = 0;
+    
+    private static int numReadAheadPages = 0, numReadAheadWasted = 0;
+    
+    private static int numTransitWaits = 0;
+    
+    private static int numPageOutsInFlight = 0;
+    private static boolean shuttingDown = false;
+    
+    private static int zeroFrame;
+    private static int numZeroMaps = 0, numZeroCopies = 0, numZeroDrops = 0;
+    
     private static VMProcess dummy1 = null;
     private static final char dbgVM = 'v';
     private static final int pageSize = Processor.pageSize;
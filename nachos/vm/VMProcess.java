@@ -8,11 +8,25 @@ import java.util.*;
 
 public class VMProcess extends UserProcess {
     private HashMap<Integer, Integer> vpnToSwapPage;
+    private ArrayList<MappedRegion> mappedRegions;
+    private BitSet copyOnWritePages;
+    private BitSet staleSwapPages;
+    private BitSet readAheadPages;
+    private BitSet zeroPages;
+    private int nextSequentialVPN = -1;
+    private int readAheadWindow = 0;
+    private int[] forkRegisters;
+    private int mmapBase;
     private Lock processLock;
-    
+
     public VMProcess() {
         super();
         vpnToSwapPage = new HashMap<>();
+        mappedRegions = new ArrayList<>();
+        copyOnWritePages = new BitSet();
+        staleSwapPages = new BitSet();
+        readAheadPages = new BitSet();
+        zeroPages = new BitSet();
         processLock = new Lock();
     }
 
@@ -27,32 +41,53 @@ public class VMProcess extends UserProcess {
     protected boolean loadSections() {
         pageTable = new TranslationEntry[numPages];
         for (int i = 0; i < numPages; i++) {
-            pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
+            if (i < stackBase - 1 || i >= stackBottom) {
+                pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
+            }
         }
-        
+        mmapBase = heapBase + maxHeapPages;
+
         VMKernel.registerProcess(this);
         return true;
     }
 
     protected void unloadSections() {
-        processLock.acquire();
-        
+        while (!mappedRegions.isEmpty()) {
+            unmapRegion(mappedRegions.remove(mappedRegions.size() - 1));
+        }
+
         for (int i = 0; i < pageTable.length; i++) {
             if (pageTable[i] != null && pageTable[i].valid) {
-                VMKernel.freePhysicalPage(pageTable[i].ppn);
-            }
-            
-            if (vpnToSwapPage.containsKey(i)) {
-                VMKernel.freeSwapPage(vpnToSwapPage.get(i));
+                VMKernel.freePhysicalPage(this, i, pageTable[i].ppn);
             }
         }
-        
+
+        processLock.acquire();
+        for (int swapPage : vpnToSwapPage.values()) {
+            VMKernel.freeSwapPage(swapPage);
+        }
         vpnToSwapPage.clear();
         processLock.release();
-        
+
         VMKernel.unregisterProcess(this);
     }
 
+    private static final int syscallMmap = 10, syscallMunmap = 15,
+            syscallFork = 16;
+
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+        switch (syscall) {
+        case syscallMmap:
+            return handleMmap(a0, a1, a2);
+        case syscallMunmap:
+            return handleMunmap(a0);
+        case syscallFork:
+            return handleFork();
+        default:
+            return super.handleSyscall(syscall, a0, a1, a2, a3);
+        }
+    }
+
     public void handleException(int cause) {
         Processor processor = Machine.processor();
 
@@ -61,214 +96,632 @@ public class VMProcess extends UserProcess {
             int vaddr = processor.readRegister(Processor.regBadVAddr);
             handlePageFault(vaddr);
             break;
+        case Processor.exceptionReadOnly:
+            int badVPN = processor.readRegister(Processor.regBadVAddr) / pageSize;
+            if (!handleCopyOnWrite(badVPN)) {
+                super.handleException(cause);
+            }
+            break;
         default:
             super.handleException(cause);
             break;
         }
     }
-    
+
     private void handlePageFault(int vaddr) {
         int vpn = vaddr / pageSize;
-        
-        if (vpn < 0 || vpn >= pageTable.length) {
+
+        if (vpn < 0 || vpn >= pageTable.length
+                || (pageTable[vpn] == null && !growStack(vaddr))) {
             handleExit(-1);
             return;
         }
-        
-        VMKernel.getVMLock().acquire();
-        
+
         if (pageTable[vpn].valid) {
-            VMKernel.getVMLock().release();
             return;
         }
-        
+
+        SharedSegment segment = getAttachedSegment(vpn);
+        if (segment != null) {
+            VMKernel.faultSharedPage(this, vpn, segment, getSharedPageIndex(vpn));
+            return;
+        }
+
+        MappedRegion region = getMappedRegion(vpn);
+        int swapPage = getSwapPage(vpn);
+        CoffSection section = getCoffSection(vpn);
+
+        // Read-only text is the same for every process running the image,
+        // so it is shared rather than loaded once per process.
+        if (region == null && swapPage == -1 && section != null && section.isReadOnly()) {
+            VMKernel.faultTextPage(this, vpn, section, vpn - section.getFirstVPN());
+            return;
+        }
+
+        // Stack, heap, BSS, and pages that were all zeros when evicted share
+        // one zero frame until they are first written.
+        if (region == null && swapPage == -1
+                && (section == null || !section.isInitialzed() || zeroPages.get(vpn))) {
+            VMKernel.mapZeroPage(this, vpn);
+            copyOnWritePages.set(vpn);
+            return;
+        }
+
         int ppn = VMKernel.allocatePhysicalPage(this, vpn);
         if (ppn == -1) {
-            VMKernel.getVMLock().release();
             handleExit(-1);
             return;
         }
-        
-        pageTable[vpn].ppn = ppn;
-        
-        processLock.acquire();
-        boolean loaded = false;
-        
-        if (vpnToSwapPage.containsKey(vpn)) {
-            VMKernel.getVMLock().release();
-            
-            int swapPage = vpnToSwapPage.get(vpn);
-            VMKernel.readPageFromSwap(swapPage, ppn);
-            loaded = true;
-            
-            VMKernel.getVMLock().acquire();
+
+        // A fault just past the last one, or past the pages read ahead
+        // then, continues a sequential scan, so read further ahead.
+        int window = 0;
+        if (vpn == nextSequentialVPN) {
+            readAheadWindow = Math.min(maxReadAhead, Math.max(1, 2 * readAheadWindow));
+            window = readAheadWindow;
         }
-        
-        if (!loaded) {
-            VMKernel.getVMLock().release();
-            
-            loaded = loadPageFromCoff(vpn, ppn);
-            if (!loaded) {
-                VMKernel.zeroFillPage(ppn);
+        int readAhead = 0;
+
+        // The frame is not yet valid in our page table, so the clock hand
+        // skips it while we fill it without holding vmLock.
+        if (region != null) {
+            region.loadPage(vpn, ppn);
+            installPage(vpn, ppn, false, false);
+        } else if (swapPage != -1) {
+            int[] frames = gatherSwapRun(vpn, ppn, swapPage, window);
+            VMKernel.readPagesFromSwap(swapPage, frames);
+            for (int i = 0; i < frames.length; i++) {
+                setSwapCopyCurrent(vpn + i, true);
+                installPage(vpn + i, frames[i], false, i > 0);
             }
-            
-            VMKernel.getVMLock().acquire();
+            readAhead = frames.length - 1;
+        } else {
+            section.loadPage(vpn - section.getFirstVPN(), ppn);
+            installPage(vpn, ppn, section.isReadOnly(), false);
+            readAhead = readAheadSection(vpn, section, window);
         }
-        
+
+        nextSequentialVPN = vpn + 1 + readAhead;
+    }
+
+    private void installPage(int vpn, int ppn, boolean readOnly, boolean readAhead) {
+        VMKernel.getVMLock().acquire();
+        pageTable[vpn].ppn = ppn;
         pageTable[vpn].valid = true;
         pageTable[vpn].used = false;
         pageTable[vpn].dirty = false;
-        
-        boolean isReadOnly = false;
-        for (int s = 0; s < coff.getNumSections(); s++) {
-            CoffSection section = coff.getSection(s);
-            if (vpn >= section.getFirstVPN() && 
-                vpn < section.getFirstVPN() + section.getLength()) {
-                isReadOnly = section.isReadOnly();
+        pageTable[vpn].readOnly = readOnly;
+        copyOnWritePages.clear(vpn);
+        readAheadPages.set(vpn, readAhead);
+        zeroPages.clear(vpn);
+        VMKernel.getVMLock().release();
+    }
+
+    /**
+     * Return frames for <i>vpn</i>, already allocated as <i>ppn</i>, and for
+     * up to <i>window</i> pages after it that are not resident and whose
+     * swap slots follow <i>swapPage</i>, so they can all be read at once.
+     * Stops at the first page that does not qualify or has no free frame.
+     */
+    private int[] gatherSwapRun(int vpn, int ppn, int swapPage, int window) {
+        int[] frames = new int[1 + window];
+        frames[0] = ppn;
+        int count = 1;
+        while (count <= window && canReadAhead(vpn + count)
+                && getSwapPage(vpn + count) == swapPage + count) {
+            int frame = VMKernel.allocateReadAheadPage(this, vpn + count);
+            if (frame == -1) {
+                break;
+            }
+            frames[count++] = frame;
+        }
+        return Arrays.copyOf(frames, count);
+    }
+
+    /**
+     * Load up to <i>window</i> pages of <i>section</i> after <i>vpn</i>,
+     * stopping at the first that is resident, has been swapped, or has no
+     * free frame.
+     *
+     * @return the number of pages loaded.
+     */
+    private int readAheadSection(int vpn, CoffSection section, int window) {
+        int end = section.getFirstVPN() + section.getLength();
+        int count = 0;
+        while (count < window && vpn + 1 + count < end) {
+            int next = vpn + 1 + count;
+            if (!canReadAhead(next) || hasSwapPage(next)) {
+                break;
+            }
+            int frame = VMKernel.allocateReadAheadPage(this, next);
+            if (frame == -1) {
                 break;
             }
+            section.loadPage(next - section.getFirstVPN(), frame);
+            installPage(next, frame, false, true);
+            count++;
         }
-        pageTable[vpn].readOnly = isReadOnly;
-        
+        return count;
+    }
+
+    private boolean canReadAhead(int vpn) {
+        return vpn < pageTable.length && pageTable[vpn] != null && !pageTable[vpn].valid
+                && !zeroPages.get(vpn) && getAttachedSegment(vpn) == null && getMappedRegion(vpn) == null;
+    }
+
+    /**
+     * Record that page <i>vpn</i>, being evicted, is all zeros, so the next
+     * fault maps the shared zero frame instead of reading it back. Any swap
+     * copy is dropped. The caller must hold vmLock.
+     */
+    public void setZeroPage(int vpn) {
+        zeroPages.set(vpn);
+
+        processLock.acquire();
+        Integer swapPage = vpnToSwapPage.remove(vpn);
+        staleSwapPages.clear(vpn);
         processLock.release();
-        VMKernel.getVMLock().release();
+        if (swapPage != null) {
+            VMKernel.freeSwapPage(swapPage);
+        }
     }
-    
-    private boolean loadPageFromCoff(int vpn, int ppn) {
+
+    /**
+     * Note that page <i>vpn</i> has been used since it was read ahead. The
+     * caller must hold vmLock.
+     */
+    public void readAheadUsed(int vpn) {
+        readAheadPages.clear(vpn);
+    }
+
+    /**
+     * Note that page <i>vpn</i> is being evicted. If it was read ahead and
+     * never used, the read-ahead window is halved. The caller must hold
+     * vmLock.
+     *
+     * @return <tt>true</tt> if the page was read ahead for nothing.
+     */
+    public boolean readAheadEvicted(int vpn, boolean used) {
+        boolean wasted = readAheadPages.get(vpn) && !used;
+        readAheadPages.clear(vpn);
+        if (wasted) {
+            readAheadWindow /= 2;
+        }
+        return wasted;
+    }
+
+    private CoffSection getCoffSection(int vpn) {
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
             int firstVPN = section.getFirstVPN();
-            
+
             if (vpn >= firstVPN && vpn < firstVPN + section.getLength()) {
-                section.loadPage(vpn - firstVPN, ppn);
-                return true;
+                return section;
             }
         }
-        return false;
+        return null;
     }
-    
-    public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-        Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-        
-        byte[] memory = Machine.processor().getMemory();
-        int amount = 0;
-        
-        while (length > 0 && vaddr < numPages * pageSize) {
-            int vpn = vaddr / pageSize;
-            int addrOffset = vaddr % pageSize;
-            int transfer = Math.min(length, pageSize - addrOffset);
-            
-            if (vpn < 0 || vpn >= pageTable.length) {
-                break;
+
+    public void initRegisters() {
+        if (forkRegisters == null) {
+            super.initRegisters();
+            return;
+        }
+
+        Processor processor = Machine.processor();
+        for (int i = 0; i < Processor.numUserRegisters; i++) {
+            processor.writeRegister(i, forkRegisters[i]);
+        }
+        forkRegisters = null;
+    }
+
+    private int handleFork() {
+        VMProcess child = (VMProcess) newUserProcess();
+
+        // The child runs the parent's image, even if the file has changed.
+        child.coff = UserKernel.imageCache.share(coff);
+        child.executableName = executableName;
+        child.numPages = numPages;
+        child.mmapBase = mmapBase;
+        child.stackBase = stackBase;
+        child.stackBottom = stackBottom;
+        child.heapBase = heapBase;
+        child.heapBreak = heapBreak;
+        child.pageTable = new TranslationEntry[pageTable.length];
+
+        // As with exec, the child shares our standard input and output.
+        inheritStandardFiles(child);
+
+        // The child resumes after the syscall with a return value of 0.
+        Processor processor = Machine.processor();
+        child.forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++) {
+            child.forkRegisters[i] = processor.readRegister(i);
+        }
+        child.forkRegisters[Processor.regV0] = 0;
+        child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+        child.forkRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC) + 4;
+
+        VMKernel.registerProcess(child);
+
+        // Share every resident frame read-only; whoever writes first gets a
+        // private copy in handleCopyOnWrite. Non-resident pages share their
+        // swap copy, once it has been written. File mappings and shared
+        // segments are not inherited.
+        VMKernel.getVMLock().acquire();
+        VMKernel.awaitPageOuts(this);
+        for (int vpn = 0; vpn < pageTable.length; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+            if (entry == null || isMappedPage(vpn) || getAttachedSegment(vpn) != null) {
+                continue;
             }
-            
-            VMKernel.getVMLock().acquire();
-            
-            if (!pageTable[vpn].valid) {
-                VMKernel.getVMLock().release();
-                handlePageFault(vaddr);
-                VMKernel.getVMLock().acquire();
-                
-                if (!pageTable[vpn].valid) {
-                    VMKernel.getVMLock().release();
-                    break;
+
+            if (entry.valid) {
+                if (!entry.readOnly) {
+                    entry.readOnly = true;
+                    copyOnWritePages.set(vpn);
                 }
+                VMKernel.shareFrame(this, child, vpn);
             }
-            
-            int ppn = pageTable[vpn].ppn;
-            VMKernel.pinPage(ppn);
+            child.pageTable[vpn] = new TranslationEntry(entry);
+        }
+        child.copyOnWritePages.or(copyOnWritePages);
+        child.staleSwapPages.or(staleSwapPages);
+        child.zeroPages.or(zeroPages);
+
+        processLock.acquire();
+        for (Map.Entry<Integer, Integer> swap : vpnToSwapPage.entrySet()) {
+            VMKernel.shareSwapPage(swap.getValue());
+            child.vpnToSwapPage.put(swap.getKey(), swap.getValue());
+        }
+        processLock.release();
+        VMKernel.getVMLock().release();
+
+        addChild(child);
+
+        child.thread = new UThread(child);
+        child.thread.setName(executableName).fork();
+
+        Lib.debug(dbgVM, "fork " + getPID() + " -> " + child.getPID());
+        return child.getPID();
+    }
+
+    private boolean handleCopyOnWrite(int vpn) {
+        if (vpn < 0 || vpn >= pageTable.length || !copyOnWritePages.get(vpn)) {
+            return false;
+        }
+
+        VMKernel.copyOnWrite(this, vpn);
+        copyOnWritePages.clear(vpn);
+        return true;
+    }
+
+    protected int handleShmat(int id) {
+        SharedSegment segment = UserKernel.attachSharedSegment(id);
+        if (segment == null)
+            return -1;
+
+        int firstVPN = reserveVirtualPages(segment.numPages);
+        sharedAttachments.put(firstVPN, segment);
+        return firstVPN * pageSize;
+    }
+
+    protected int handleShmdt(int vaddr) {
+        if (vaddr % pageSize != 0)
+            return -1;
+
+        int firstVPN = vaddr / pageSize;
+        SharedSegment segment = sharedAttachments.remove(firstVPN);
+        if (segment == null)
+            return -1;
+
+        boolean last = UserKernel.detachSharedSegment(segment);
+        for (int i = 0; i < segment.numPages; i++) {
+            VMKernel.releaseSharedPage(this, firstVPN + i, segment, i, !last);
+            pageTable[firstVPN + i] = null;
+        }
+
+        if (last) {
+            for (int i = 0; i < segment.numPages; i++) {
+                if (segment.swapPages[i] != -1) {
+                    VMKernel.freeSwapPage(segment.swapPages[i]);
+                    segment.swapPages[i] = -1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Heap and stack pages start out invalid and are zero-filled on first
+     * touch.
+     */
+    protected boolean mapZeroPages(int firstVPN, int endVPN) {
+        VMKernel.getVMLock().acquire();
+        growPageTable(endVPN);
+        for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+            pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false, false);
+        }
+        VMKernel.getVMLock().release();
+
+        // An eviction that raced with an earlier shrink may have left a swap
+        // copy behind; the new pages must read as zeros.
+        processLock.acquire();
+        for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+            Integer swapPage = vpnToSwapPage.remove(vpn);
+            staleSwapPages.clear(vpn);
+            if (swapPage != null) {
+                VMKernel.freeSwapPage(swapPage);
+            }
+        }
+        processLock.release();
+        return true;
+    }
+
+    protected void unmapPages(int firstVPN, int endVPN) {
+        for (int vpn = firstVPN; vpn < endVPN; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+
+            VMKernel.getVMLock().acquire();
+            boolean resident = entry.valid;
+            entry.valid = false;
+            pageTable[vpn] = null;
+            copyOnWritePages.clear(vpn);
+            zeroPages.clear(vpn);
             VMKernel.getVMLock().release();
-            
-            int paddr = ppn * pageSize + addrOffset;
-            System.arraycopy(memory, paddr, data, offset, transfer);
-            
-            pageTable[vpn].used = true;
-            
-            VMKernel.unpinPage(ppn);
-            
-            vaddr += transfer;
-            offset += transfer;
-            amount += transfer;
-            length -= transfer;
-        }
-        
-        return amount;
+
+            if (resident) {
+                VMKernel.freePhysicalPage(this, vpn, entry.ppn);
+            }
+
+            processLock.acquire();
+            Integer swapPage = vpnToSwapPage.remove(vpn);
+            staleSwapPages.clear(vpn);
+            processLock.release();
+            if (swapPage != null) {
+                VMKernel.freeSwapPage(swapPage);
+            }
+        }
     }
-    
+
+    public SharedSegment getAttachedSegment(int vpn) {
+        for (Map.Entry<Integer, SharedSegment> attachment : sharedAttachments.entrySet()) {
+            int firstVPN = attachment.getKey();
+            if (vpn >= firstVPN && vpn < firstVPN + attachment.getValue().numPages) {
+                return attachment.getValue();
+            }
+        }
+        return null;
+    }
+
+    public int getSharedPageIndex(int vpn) {
+        for (Map.Entry<Integer, SharedSegment> attachment : sharedAttachments.entrySet()) {
+            int firstVPN = attachment.getKey();
+            if (vpn >= firstVPN && vpn < firstVPN + attachment.getValue().numPages) {
+                return vpn - firstVPN;
+            }
+        }
+        return -1;
+    }
+
+    private int handleMmap(int fd, int offset, int length) {
+        OpenFile file = getOpenFile(fd);
+        if (file == null || file.length() < 0)
+            return -1;
+
+        if (offset < 0 || offset % pageSize != 0 || length <= 0)
+            return -1;
+
+        // The mapping keeps its own handle so that it outlives close(fd).
+        OpenFile backing = ThreadedKernel.fileSystem.open(file.getName(), false);
+        if (backing == null)
+            return -1;
+        backing = UserKernel.imageCache.watch(backing);
+
+        int regionPages = Lib.divRoundUp(length, pageSize);
+        int firstVPN = reserveVirtualPages(regionPages);
+
+        mappedRegions.add(new MappedRegion(backing, offset, length, firstVPN, regionPages));
+
+        Lib.debug(dbgVM, "mmap " + file.getName() + " at vpn " + firstVPN
+                + " (" + regionPages + " pages)");
+        return firstVPN * pageSize;
+    }
+
+    private int handleMunmap(int vaddr) {
+        for (int i = 0; i < mappedRegions.size(); i++) {
+            MappedRegion region = mappedRegions.get(i);
+            if (region.firstVPN * pageSize == vaddr) {
+                mappedRegions.remove(i);
+                unmapRegion(region);
+                return 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find <i>count</i> consecutive unmapped virtual pages above the program
+     * image, growing the page table if there is no hole large enough, and
+     * give them fresh invalid translation entries.
+     */
+    private int reserveVirtualPages(int count) {
+        int firstVPN = mmapBase;
+        for (int vpn = mmapBase; vpn < pageTable.length && vpn - firstVPN < count; vpn++) {
+            if (pageTable[vpn] != null) {
+                firstVPN = vpn + 1;
+            }
+        }
+
+        VMKernel.getVMLock().acquire();
+        if (firstVPN + count > pageTable.length) {
+            pageTable = Arrays.copyOf(pageTable, firstVPN + count);
+            numPages = pageTable.length;
+            Machine.processor().setPageTable(pageTable);
+        }
+        for (int vpn = firstVPN; vpn < firstVPN + count; vpn++) {
+            pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false, false);
+        }
+        VMKernel.getVMLock().release();
+
+        return firstVPN;
+    }
+
+    private void unmapRegion(MappedRegion region) {
+        for (int vpn = region.firstVPN; vpn < region.firstVPN + region.numPages; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+
+            // An eviction may still be writing this page to the file.
+            VMKernel.waitForPageOut(this, vpn);
+
+            VMKernel.getVMLock().acquire();
+            boolean resident = entry.valid;
+            entry.valid = false;
+            pageTable[vpn] = null;
+            VMKernel.getVMLock().release();
+
+            if (resident) {
+                if (entry.dirty) {
+                    region.writeBackPage(vpn, Machine.processor().getMemory(), entry.ppn * pageSize);
+                }
+                VMKernel.freePhysicalPage(this, vpn, entry.ppn);
+            }
+        }
+        region.file.close();
+    }
+
+    MappedRegion getMappedRegion(int vpn) {
+        for (MappedRegion region : mappedRegions) {
+            if (vpn >= region.firstVPN && vpn < region.firstVPN + region.numPages) {
+                return region;
+            }
+        }
+        return null;
+    }
+
+    public boolean isMappedPage(int vpn) {
+        return getMappedRegion(vpn) != null;
+    }
+
+    public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        return copyVirtualMemory(vaddr, data, offset, length, false);
+    }
+
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+        return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy between <i>data</i> and user memory at <i>vaddr</i>, into user
+     * memory if <i>write</i> is set. The pages are faulted in and pinned a
+     * range at a time, and copied with no further checks.
+     *
+     * @return the number of bytes copied, which stops short at the first
+     * page that is not part of the address space.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean write) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-        
+
         byte[] memory = Machine.processor().getMemory();
         int amount = 0;
-        
-        while (length > 0 && vaddr < numPages * pageSize) {
-            int vpn = vaddr / pageSize;
-            int addrOffset = vaddr % pageSize;
-            int transfer = Math.min(length, pageSize - addrOffset);
-            
-            if (vpn < 0 || vpn >= pageTable.length) {
-                break;
-            }
-            
-            VMKernel.getVMLock().acquire();
-            
-            if (!pageTable[vpn].valid) {
-                VMKernel.getVMLock().release();
-                handlePageFault(vaddr);
-                VMKernel.getVMLock().acquire();
-                
-                if (!pageTable[vpn].valid) {
-                    VMKernel.getVMLock().release();
-                    break;
+
+        while (length > 0 && vaddr >= 0 && vaddr < numPages * pageSize) {
+            VMKernel.PinnedRange range = VMKernel.pinRange(this, vaddr,
+                    Math.min(length, numPages * pageSize - vaddr), write);
+
+            for (int i = 0; i < range.getNumPages(); i++) {
+                int vpn = vaddr / pageSize;
+                int addrOffset = vaddr % pageSize;
+                int transfer = Math.min(length, pageSize - addrOffset);
+                int paddr = range.getFrame(vpn) * pageSize + addrOffset;
+
+                if (write) {
+                    System.arraycopy(data, offset, memory, paddr, transfer);
+                    pageTable[vpn].dirty = true;
+                } else {
+                    System.arraycopy(memory, paddr, data, offset, transfer);
                 }
+                pageTable[vpn].used = true;
+
+                vaddr += transfer;
+                offset += transfer;
+                amount += transfer;
+                length -= transfer;
             }
-            
-            if (pageTable[vpn].readOnly) {
-                VMKernel.getVMLock().release();
+
+            boolean truncated = range.isTruncated() || range.getNumPages() == 0;
+            range.release();
+            if (truncated) {
                 break;
             }
-            
-            int ppn = pageTable[vpn].ppn;
-            VMKernel.pinPage(ppn);
-            VMKernel.getVMLock().release();
-            
-            int paddr = ppn * pageSize + addrOffset;
-            System.arraycopy(data, offset, memory, paddr, transfer);
-            
-            pageTable[vpn].used = true;
-            pageTable[vpn].dirty = true;
-            
-            VMKernel.unpinPage(ppn);
-            
-            vaddr += transfer;
-            offset += transfer;
-            amount += transfer;
-            length -= transfer;
-        }
-        
+        }
+
         return amount;
     }
-    
+
+    /**
+     * Make page <i>vpn</i> resident for a copy, and private and writable if
+     * <i>write</i> is set. <i>vaddr</i> is the first address of the page
+     * being copied, which decides whether the stack may grow to it.
+     *
+     * @return <tt>false</tt> if the page is not part of the address space,
+     * or is read-only and <i>write</i> is set.
+     */
+    boolean faultIn(int vpn, int vaddr, boolean write) {
+        if (vpn < 0 || vpn >= pageTable.length
+                || (pageTable[vpn] == null && !growStack(vaddr))) {
+            return false;
+        }
+
+        if (!pageTable[vpn].valid) {
+            handlePageFault(vaddr);
+        }
+        if (pageTable[vpn] == null || !pageTable[vpn].valid) {
+            return false;
+        }
+        if (write && pageTable[vpn].readOnly) {
+            return handleCopyOnWrite(vpn);
+        }
+        return true;
+    }
+
     public TranslationEntry getPageTableEntry(int vpn) {
         if (vpn < 0 || vpn >= pageTable.length) {
             return null;
         }
         return pageTable[vpn];
     }
-    
+
     public void setSwapPage(int vpn, int swapPage) {
         processLock.acquire();
         vpnToSwapPage.put(vpn, swapPage);
         processLock.release();
     }
-    
+
+    /**
+     * Test whether <i>vpn</i>'s swap slot holds the same data as its frame
+     * did when last clean, so a clean frame can be dropped without writing.
+     */
+    public boolean isSwapCopyCurrent(int vpn) {
+        processLock.acquire();
+        boolean current = vpnToSwapPage.containsKey(vpn) && !staleSwapPages.get(vpn);
+        processLock.release();
+        return current;
+    }
+
+    public void setSwapCopyCurrent(int vpn, boolean current) {
+        processLock.acquire();
+        staleSwapPages.set(vpn, !current);
+        processLock.release();
+    }
+
     public boolean hasSwapPage(int vpn) {
         processLock.acquire();
         boolean result = vpnToSwapPage.containsKey(vpn);
         processLock.release();
         return result;
     }
-    
+
     public int getSwapPage(int vpn) {
         processLock.acquire();
         Integer swapPage = vpnToSwapPage.get(vpn);
@@ -276,7 +729,50 @@ public class VMProcess extends UserProcess {
         return (swapPage != null) ? swapPage : -1;
     }
 
+    /**
+     * A range of virtual pages backed by a file instead of swap. Pages are
+     * read from the file on first touch and dirty pages are written back to
+     * it when they are evicted or unmapped.
+     */
+    static class MappedRegion {
+        public OpenFile file;
+        public int fileOffset;
+        public int length;
+        public int firstVPN;
+        public int numPages;
+
+        public MappedRegion(OpenFile file, int fileOffset, int length, int firstVPN, int numPages) {
+            this.file = file;
+            this.fileOffset = fileOffset;
+            this.length = length;
+            this.firstVPN = firstVPN;
+            this.numPages = numPages;
+        }
+
+        private int pageLength(int vpn) {
+            return Math.min(pageSize, length - (vpn - firstVPN) * pageSize);
+        }
+
+        public void loadPage(int vpn, int ppn) {
+            byte[] memory = Machine.processor().getMemory();
+            int paddr = ppn * pageSize;
+            int pos = fileOffset + (vpn - firstVPN) * pageSize;
+
+            int bytesRead = Math.max(0, file.read(pos, memory, paddr, pageLength(vpn)));
+            Arrays.fill(memory, paddr + bytesRead, paddr + pageSize, (byte) 0);
+        }
+
+        public void writeBackPage(int vpn, byte[] data, int offset) {
+            int pos = fileOffset + (vpn - firstVPN) * pageSize;
+
+            int bytesWritten = file.write(pos, data, offset, pageLength(vpn));
+            Lib.assertTrue(bytesWritten == pageLength(vpn));
+        }
+    }
+
+    private static final int maxReadAhead = Config.getInteger("VMProcess.maxReadAhead", 8);
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
-}
\ No newline at end of file
+}
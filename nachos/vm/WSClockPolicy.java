@@ -0,0 +1,65 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * WSClock: a clock that also tracks when each frame was last seen in use.
+ * Frames used within the last <tt>VMKernel.workingSetWindow</tt> ticks are
+ * in their process's working set and are passed over. Among frames outside
+ * every working set, clean ones are evicted before dirty ones, which would
+ * cost a write-back. If the whole of memory is in use by working sets, the
+ * least recently used frame goes.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+    private int numFrames;
+    private int hand;
+    private long[] lastUse;
+    private long window;
+
+    public void initialize(int numFrames) {
+        this.numFrames = numFrames;
+        hand = 0;
+        lastUse = new long[numFrames];
+        window = Config.getInteger("VMKernel.workingSetWindow", 10000);
+    }
+
+    public void pageLoaded(int ppn, long key) {
+        lastUse[ppn] = Machine.timer().getTime();
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int nextCandidate() {
+        return hand;
+    }
+
+    public int selectVictim() {
+        long now = Machine.timer().getTime();
+        int oldestDirty = -1, oldest = -1;
+
+        for (int i = 0; i < numFrames; i++) {
+            int ppn = hand;
+            hand = (hand + 1) % numFrames;
+
+            if (!VMKernel.isEvictable(ppn)) {
+                continue;
+            }
+            if (VMKernel.testAndClearReferenced(ppn)) {
+                lastUse[ppn] = now;
+            } else if (now - lastUse[ppn] > window) {
+                if (!VMKernel.isDirty(ppn)) {
+                    return ppn;
+                }
+                if (oldestDirty == -1 || lastUse[ppn] < lastUse[oldestDirty]) {
+                    oldestDirty = ppn;
+                }
+            }
+            if (oldest == -1 || lastUse[ppn] < lastUse[oldest]) {
+                oldest = ppn;
+            }
+        }
+
+        return (oldestDirty != -1) ? oldestDirty : oldest;
+    }
+}